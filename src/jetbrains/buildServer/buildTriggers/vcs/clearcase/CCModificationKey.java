@@ -18,12 +18,14 @@ package jetbrains.buildServer.buildTriggers.vcs.clearcase;
 
 public class CCModificationKey {
   private final String myDate;
+  private final long myDateMillis;
   private final String myUser;
   private final CommentHolder myCommentHolder = new CommentHolder();
 
 
-  public CCModificationKey(final String date, final String user) {
+  public CCModificationKey(final String date, final long dateMillis, final String user) {
     myDate = date;
+    myDateMillis = dateMillis;
     myUser = user;
   }
 
@@ -52,6 +54,10 @@ public class CCModificationKey {
     return myDate;
   }
 
+  public long getDateMillis() {
+    return myDateMillis;
+  }
+
   public String getUser() {
     return myUser;
   }
@@ -23,6 +23,7 @@ import java.text.SimpleDateFormat;
 import java.util.*;
 import jetbrains.buildServer.vcs.VcsException;
 import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 
@@ -31,13 +32,26 @@ public class CCParseUtil {
   @NonNls static final String OUTPUT_DATE_FORMAT = "yyyyMMdd.HHmmss";
   @NonNls public static final String CC_VERSION_SEPARATOR = "@@";
   @NonNls private static final String LOAD = "load ";
+  //SimpleDateFormat is not thread safe, every thread parses with its own instance instead of creating one per date
+  private static final ThreadLocal<SimpleDateFormat> ourVersionDateFormat = new ThreadLocal<SimpleDateFormat>() {
+    protected SimpleDateFormat initialValue() {
+      return getDateFormat();
+    }
+  };
+  private static final ThreadLocal<SimpleDateFormat> ourOutputDateFormat = new ThreadLocal<SimpleDateFormat>() {
+    protected SimpleDateFormat initialValue() {
+      return new SimpleDateFormat(OUTPUT_DATE_FORMAT);
+    }
+  };
+  private static final int MAX_PARSED_VERSIONS = 10000;
 
   private CCParseUtil() {
   }
 
   public static List<DirectoryChildElement> readDirectoryVersionContent(ClearCaseConnection connection, final String dirPath)
     throws VcsException {
-    List<DirectoryChildElement> subfiles = new ArrayList<DirectoryChildElement>();
+    final List<String> paths = new ArrayList<String>();
+    final List<DirectoryChildElement.Type> types = new ArrayList<DirectoryChildElement.Type>();
 
     try {
       final InputStream inputStream = connection.listDirectoryContent(dirPath);
@@ -47,9 +61,10 @@ public class CCParseUtil {
 
 
         while ((line = reader.readLine()) != null) {
-          final DirectoryChildElement element = DirectoryChildElement.readFromLSFormat(line, connection);
-          if (element != null) {
-            subfiles.add(element);
+          final DirectoryChildElement.Type type = DirectoryChildElement.readTypeFromLSFormat(line);
+          if (type != null) {
+            paths.add(DirectoryChildElement.readPathFromLSFormat(line));
+            types.add(type);
           }
         }
       } finally {
@@ -60,7 +75,8 @@ public class CCParseUtil {
     } catch (IOException e) {
       throw new VcsException(e);
     }
-    return subfiles;
+    //version trees of all the children are requested at once to hide the round trips to the VOB server
+    return connection.getLastVersionElements(paths, types);
   }
 
   public static void processChangedFiles(final ClearCaseConnection connection,
@@ -70,66 +86,184 @@ public class CCParseUtil {
     throws ParseException, IOException, VcsException {
     final @Nullable Date lastDate = currentVersion != null ? parseDate(currentVersion) : null;
 
+    readHistory(connection, fromVersion, lastDate, fileProcessor, null, null);
+  }
 
-    final InputStream inputStream = connection.getChanges(fromVersion);
+  /**
+   * Reads the history once since the earlier of the versions. Changes made after the current version are passed
+   * to the ignored changes processor at once, the changes between the versions are returned to be processed
+   * by {@link #processChangedElements} when all the changes to ignore are known.
+   *
+   * @param fromVersion null if only the changes to ignore are needed
+   */
+  @NotNull
+  public static List<HistoryElement> readChangedFiles(final ClearCaseConnection connection,
+                                                      @Nullable final String fromVersion,
+                                                      @NotNull final String currentVersion,
+                                                      @NotNull final ChangedFilesProcessor ignoredChangesProcessor)
+    throws ParseException, IOException, VcsException {
+    final Date lastDate = parseDate(currentVersion);
+    final List<HistoryElement> changes = new ArrayList<HistoryElement>();
+    if (fromVersion != null && parseDate(fromVersion).before(lastDate)) {
+      readHistory(connection, fromVersion, lastDate, null, changes, ignoredChangesProcessor);
+    } else {
+      //there are no changes between the versions
+      readHistory(connection, currentVersion, lastDate, null, null, ignoredChangesProcessor);
+    }
+    return changes;
+  }
 
-    final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+  public static void processChangedElements(final ClearCaseConnection connection,
+                                            final List<HistoryElement> elements,
+                                            final ChangedFilesProcessor fileProcessor) throws IOException, VcsException {
+    for (HistoryElement element : elements) {
+      processHistoryElement(connection, element, fileProcessor);
+    }
+  }
 
+  /**
+   * Changes before the last date are passed to the file processor if it is set or collected otherwise,
+   * the rest are passed to the ignored changes processor if it is set.
+   */
+  private static void readHistory(final ClearCaseConnection connection,
+                                  final String since,
+                                  @Nullable final Date lastDate,
+                                  @Nullable final ChangedFilesProcessor fileProcessor,
+                                  @Nullable final List<HistoryElement> changes,
+                                  @Nullable final ChangedFilesProcessor ignoredChangesProcessor)
+    throws ParseException, IOException, VcsException {
+    final long sinceMillis = parseVersionDate(since);
+    final HistoryReader reader = connection.readChanges(since);
+    //versions destroyed by the events read so far, the journal keeps the earlier events of such versions
+    final Set<String> destroyedVersions = new HashSet<String>();
 
     try {
-      String line = reader.readLine();
-      while (line != null) {
-        String nextLine = reader.readLine();
-        if (!line.endsWith(ClearCaseConnection.LINE_END_DELIMITER)) {
-          while (nextLine != null && !line.endsWith(ClearCaseConnection.LINE_END_DELIMITER)) {
-            line += '\n' + nextLine;
-            nextLine = reader.readLine();
-          }
+      HistoryElement element;
+      while ((element = reader.readNext()) != null) {
+        final Date date = new Date(element.getDateMillis());
+        if (date.getTime() < sinceMillis) {
+          //journaled history may contain older events
+          continue;
         }
-        if (line.endsWith(ClearCaseConnection.LINE_END_DELIMITER)) {
-          line = line.substring(0, line.length() - ClearCaseConnection.LINE_END_DELIMITER.length());
+        final String version = element.getObjectName() + CC_VERSION_SEPARATOR + element.getObjectVersion();
+        if ("rmver".equals(element.getOperation())) {
+          destroyedVersions.add(version);
+        } else if ("checkin".equals(element.getOperation()) && destroyedVersions.contains(version)) {
+          continue;
         }
-        HistoryElement element = HistoryElement.readFrom(line);
-        if (element != null) {
-          final Date date = new SimpleDateFormat(OUTPUT_DATE_FORMAT).parse(element.getDate());
-          if (connection.isInsideView(element.getObjectName())) {
-            if (lastDate == null || date.before(lastDate)) {
-              if ("checkin".equals(element.getOperation())) {
-                if ("create directory version".equals(element.getEvent())) {
-                  if (element.versionIsInsideView(connection, false)) {
-                    fileProcessor.processChangedDirectory(element);
-                  }
-                } else if ("create version".equals(element.getEvent())) {
-                  if (element.versionIsInsideView(connection, true)) {
-                    fileProcessor.processChangedFile(element);
-                  }
-                }
-              } else if ("rmver".equals(element.getOperation())) {
-                if ("destroy version on branch".equals(element.getEvent())) {
-                  fileProcessor.processDestroyedFileVersion(element);
-                }
-              }
+        if (connection.isInsideView(element.getObjectName())) {
+          connection.historyEventRead(element, date);
+          if (lastDate == null || date.before(lastDate)) {
+            if (fileProcessor != null) {
+              processHistoryElement(connection, element, fileProcessor);
+            } else if (changes != null && isChange(element)) {
+              changes.add(element);
             }
+          } else if (ignoredChangesProcessor != null) {
+            processHistoryElement(connection, element, ignoredChangesProcessor);
           }
         }
-
-        line = nextLine;
       }
-
-
     } finally {
       reader.close();
     }
   }
 
+  private static boolean isChange(final HistoryElement element) {
+    if ("checkin".equals(element.getOperation())) {
+      return "create directory version".equals(element.getEvent()) || "create version".equals(element.getEvent());
+    }
+    return "rmver".equals(element.getOperation()) && "destroy version on branch".equals(element.getEvent());
+  }
+
+  private static void processHistoryElement(final ClearCaseConnection connection,
+                                            final HistoryElement element,
+                                            final ChangedFilesProcessor fileProcessor) throws IOException, VcsException {
+    if ("checkin".equals(element.getOperation())) {
+      if ("create directory version".equals(element.getEvent())) {
+        if (element.versionIsInsideView(connection, false)) {
+          fileProcessor.processChangedDirectory(element);
+        }
+      } else if ("create version".equals(element.getEvent())) {
+        if (element.versionIsInsideView(connection, true)) {
+          fileProcessor.processChangedFile(element);
+        }
+      }
+    } else if ("rmver".equals(element.getOperation())) {
+      if ("destroy version on branch".equals(element.getEvent())) {
+        fileProcessor.processDestroyedFileVersion(element);
+      }
+    }
+  }
+
   private static Date parseDate(final String currentVersion) throws ParseException {
-    return getDateFormat().parse(currentVersion);
+    return new Date(parseVersionDate(currentVersion));
   }
   
   public static String formatDate(final Date date) {
-    return getDateFormat().format(date);
+    return ourVersionDateFormat.get().format(date);
     
   }
+
+  /**
+   * @return time of the version (see {@link #formatDate}) in milliseconds
+   */
+  public static long parseVersionDate(final String version) throws ParseException {
+    return ourVersionDateFormat.get().parse(version).getTime();
+  }
+
+  /**
+   * @return time in milliseconds of the date printed by cleartool with %Nd
+   */
+  public static long parseOutputDate(final String date) throws ParseException {
+    return ourOutputDateFormat.get().parse(date).getTime();
+  }
+
+  /**
+   * Compares versions by their dates, every version is parsed only once (up to the limit of remembered versions,
+   * the least recently used ones are forgotten first).
+   * Versions which cannot be parsed go before all dated versions and are compared as strings among themselves.
+   */
+  public static Comparator<String> createVersionComparator() {
+    return new Comparator<String>() {
+      //the same instance is remembered for every version which cannot be parsed, it is compared by identity
+      private final Long myUnparseable = new Long(Long.MIN_VALUE);
+      private final Map<String, Long> myParsedVersions = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+          return size() > MAX_PARSED_VERSIONS;
+        }
+      };
+
+      public int compare(final String version1, final String version2) {
+        final Long date1 = getVersionDate(version1);
+        final Long date2 = getVersionDate(version2);
+        if (date1 == myUnparseable) {
+          return date2 == myUnparseable ? version1.compareTo(version2) : -1;
+        }
+        if (date2 == myUnparseable) {
+          return 1;
+        }
+        return date1.compareTo(date2);
+      }
+
+      private Long getVersionDate(final String version) {
+        synchronized (myParsedVersions) {
+          final Long date = myParsedVersions.get(version);
+          if (date != null) return date;
+        }
+        Long date;
+        try {
+          date = parseVersionDate(version);
+        } catch (ParseException e) {
+          date = myUnparseable;
+        }
+        synchronized (myParsedVersions) {
+          myParsedVersions.put(version, date);
+        }
+        return date;
+      }
+    };
+  }
   
 
   public static void processChangedDirectory(final HistoryElement element,
@@ -27,6 +27,7 @@ import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsSupportUtil;
 import jetbrains.buildServer.vcs.patches.PatchBuilder;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Version;
+import org.jetbrains.annotations.Nullable;
 
 public class CCPatchProvider {
 
@@ -52,8 +53,7 @@ public class CCPatchProvider {
           myConnection.processAllVersions(lastVersion, createFileProcessor(builder), false, myUseCCCache);
         }
       } else if (!myConnection.isConfigSpecWasChanged()) {
-        myConnection.prepare(lastVersion);
-        CCParseUtil.processChangedFiles(myConnection, fromVersion, lastVersion, new ChangedFilesProcessor() {
+        myConnection.prepareAndCollectChanges(fromVersion, lastVersion, new ChangedFilesProcessor() {
             public void processChangedFile(final HistoryElement element) throws VcsException {
                 final String path = element.getObjectName();
                 final Version version = myConnection.getLastVersion(path, true);
@@ -108,7 +108,8 @@ public class CCPatchProvider {
                               final boolean text,
                               final boolean executable)
         throws VcsException {
-        loadFile(fileFullPath, builder, relPath);
+        //attributes are already known from the directory listing, no need to describe the file again
+        loadFile(fileFullPath, builder, relPath, new ClearCaseFileAttr(executable, text));
       }
 
       public void processDirectory(final String fileFullPath,
@@ -134,15 +135,23 @@ public class CCPatchProvider {
   }
 
   private void loadFile(final String line, final PatchBuilder builder, String relativePath) throws VcsException {
+    loadFile(line, builder, relativePath, null);
+  }
+
+  private void loadFile(final String line, final PatchBuilder builder, String relativePath, @Nullable ClearCaseFileAttr knownFileAttr)
+    throws VcsException {
     try {
       final File tempFile = getTempFile();
       FileUtil.delete(tempFile);
 
       myConnection.loadFileContent(tempFile, line);
       if (tempFile.isFile()) {
-        final String pathWithoutVersion =
-          CCPathElement.replaceLastVersionAndReturnFullPathWithVersions(line, myConnection.getViewWholePath(), null);
-        ClearCaseFileAttr fileAttr = myConnection.loadFileAttr(pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR);
+        ClearCaseFileAttr fileAttr = knownFileAttr;
+        if (fileAttr == null) {
+          final String pathWithoutVersion =
+            CCPathElement.replaceLastVersionAndReturnFullPathWithVersions(line, myConnection.getViewWholePath(), null);
+          fileAttr = myConnection.loadFileAttr(pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR);
+        }
 
         final String fileMode = fileAttr.isIsExecutable() ? EXECUTABLE_ATTR : null;
         if (fileAttr.isIsText()) {
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable ClearCase path parsed once: element names and versions of the elements which have them ("@@/main/br/3").
+ * Parsing gives the same elements as {@link CCPathElement#splitIntoPathElements}.
+ */
+public final class CCPath {
+  private final String[] myNames;
+  private final String[] myVersions;
+  private int myHashCode = 0;
+
+  private CCPath(@NotNull final String[] names, @NotNull final String[] versions) {
+    myNames = names;
+    myVersions = versions;
+  }
+
+  @NotNull
+  public static CCPath parse(@NotNull final String path) {
+    final List<String> segments = splitSegments(path);
+    final List<String> names = new ArrayList<String>(segments.size());
+    final List<String> versions = new ArrayList<String>(segments.size());
+
+    boolean versionMode = false;
+    for (int i = 0; i < segments.size(); i++) {
+      final String segment = segments.get(i);
+      final boolean beginOfVersion = segment.endsWith(CCParseUtil.CC_VERSION_SEPARATOR);
+
+      if (beginOfVersion || versionMode) {
+        if (beginOfVersion) {
+          names.add(segment.substring(0, segment.length() - CCParseUtil.CC_VERSION_SEPARATOR.length()));
+          versionMode = true;
+        } else {
+          names.add(segment);
+        }
+
+        final StringBuilder version = new StringBuilder();
+        for (i += 1; i < segments.size(); i++) {
+          if (version.length() == 0) {
+            version.append(CCParseUtil.CC_VERSION_SEPARATOR);
+          }
+          version.append(File.separatorChar).append(segments.get(i));
+          if (isInteger(segments.get(i))) break;
+        }
+        versions.add(version.length() == 0 ? null : version.toString());
+      } else {
+        names.add(segment);
+        versions.add(null);
+      }
+    }
+
+    return new CCPath(names.toArray(new String[names.size()]), versions.toArray(new String[versions.size()]));
+  }
+
+  /**
+   * Splits the path by file separators like String.split does: trailing empty segments are dropped,
+   * a path without separators is a single segment.
+   */
+  @NotNull
+  static List<String> splitSegments(@NotNull final String path) {
+    final List<String> result = new ArrayList<String>();
+    int start = 0;
+    int end;
+    while ((end = path.indexOf(File.separatorChar, start)) != -1) {
+      result.add(path.substring(start, end));
+      start = end + 1;
+    }
+    if (start == 0) {
+      result.add(path);
+      return result;
+    }
+    result.add(path.substring(start));
+
+    int size = result.size();
+    while (size > 0 && result.get(size - 1).length() == 0) {
+      result.remove(--size);
+    }
+    return result;
+  }
+
+  /**
+   * Same as successful Integer.parseInt, without exceptions.
+   */
+  private static boolean isInteger(@NotNull final String s) {
+    final int start = s.startsWith("-") ? 1 : 0;
+    final int length = s.length() - start;
+    if (length <= 0) return false;
+    for (int i = start; i < s.length(); i++) {
+      if (!Character.isDigit(s.charAt(i))) return false;
+    }
+    if (length < 10) return true;
+    if (length > 18) return false;
+    final long value = Long.parseLong(s);
+    return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+  }
+
+  public int size() {
+    return myNames.length;
+  }
+
+  @NotNull
+  public String getName(final int index) {
+    return myNames[index];
+  }
+
+  @Nullable
+  public String getVersion(final int index) {
+    return myVersions[index];
+  }
+
+  /**
+   * @return true if the path starts with the elements of the view path (the view path has no versions).
+   * The first element of an absolute path is empty, it matches the first element of the view path.
+   */
+  public boolean isUnder(@NotNull final CCPath viewPath) {
+    if (viewPath.size() > size()) return false;
+    for (int i = 0; i < viewPath.size(); i++) {
+      if (i == 0 && myNames[0].length() == 0) continue;
+      if (!myNames[i].equals(viewPath.myNames[i])) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return the path where the elements of the given view path replace the first element of this path, if the first
+   * elements differ (relative or drive-less paths)
+   */
+  @NotNull
+  public CCPath resolveAgainst(@NotNull final CCPath viewPath) {
+    if (size() == 0 || viewPath.size() == 0 || myNames[0].equals(viewPath.myNames[0])) return this;
+    final int skip = myNames[0].length() == 0 ? 1 : 0;
+    final int size = viewPath.size() + size() - skip;
+    final String[] names = new String[size];
+    final String[] versions = new String[size];
+    System.arraycopy(viewPath.myNames, 0, names, 0, viewPath.size());
+    System.arraycopy(viewPath.myVersions, 0, versions, 0, viewPath.size());
+    System.arraycopy(myNames, skip, names, viewPath.size(), size() - skip);
+    System.arraycopy(myVersions, skip, versions, viewPath.size(), size() - skip);
+    return new CCPath(names, versions);
+  }
+
+  /**
+   * Same as {@link CCPathElement#createPath(List, int, int, boolean)} for the elements of this path.
+   */
+  @NotNull
+  public String createPath(final int startIndex, final int endIndex, final boolean appendVersion) {
+    final StringBuilder result = new StringBuilder();
+    for (int i = startIndex; i < endIndex; i++) {
+      if (i > startIndex) {
+        result.append(File.separatorChar);
+      }
+      result.append(myNames[i]);
+      if (appendVersion && myVersions[i] != null) {
+        result.append(myVersions[i]);
+      }
+    }
+    return result.toString();
+  }
+
+  @NotNull
+  public String getPathWithoutVersions() {
+    return createPath(0, size(), false);
+  }
+
+  /**
+   * @return the path with versions where the version of the element at the index is moved to a "." element
+   * inserted after it (the version of the VOB root is applied to its root directory)
+   */
+  @NotNull
+  public String moveVersionToDotElement(final int index) {
+    final StringBuilder result = new StringBuilder();
+    for (int i = 0; i < size(); i++) {
+      if (i > 0) {
+        result.append(File.separatorChar);
+      }
+      result.append(myNames[i]);
+      if (i == index) {
+        result.append(File.separatorChar).append('.');
+      }
+      if (myVersions[i] != null) {
+        result.append(myVersions[i]);
+      }
+    }
+    return result.toString();
+  }
+
+  @NotNull
+  public List<CCPathElement> toPathElements() {
+    final List<CCPathElement> result = new ArrayList<CCPathElement>(size());
+    for (int i = 0; i < size(); i++) {
+      final CCPathElement element = new CCPathElement(myNames[i], false);
+      element.setVersion(myVersions[i]);
+      result.add(element);
+    }
+    return result;
+  }
+
+  public boolean equals(final Object o) {
+    if (this == o) return true;
+    if (!(o instanceof CCPath)) return false;
+    final CCPath path = (CCPath)o;
+    return Arrays.equals(myNames, path.myNames) && Arrays.equals(myVersions, path.myVersions);
+  }
+
+  public int hashCode() {
+    int result = myHashCode;
+    if (result == 0) {
+      result = 31 * Arrays.hashCode(myNames) + Arrays.hashCode(myVersions);
+      myHashCode = result;
+    }
+    return result;
+  }
+
+  public String toString() {
+    return createPath(0, size(), true);
+  }
+}
@@ -16,10 +16,7 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.clearcase;
 
-import com.intellij.util.PatternUtil;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Stack;
 import jetbrains.buildServer.vcs.VcsException;
@@ -72,25 +69,11 @@ public class CCPathElement {
   }
 
   public static boolean isInsideView(String objectName, String viewPath) {
-    final List<CCPathElement> pathElements = splitIntoPathElements(objectName);
-    final List<String> viewPathElements = createViewPathElementList(viewPath, pathElements);
-
-    if (viewPathElements.size() > pathElements.size()) {
-      return false;
-    }
-
-    for (int i = 0; i < viewPathElements.size(); i++) {
-      if (!viewPathElements.get(i).equals(pathElements.get(i).getPathElement())) {
-        return false;
-      }
-    }
-
-    return true;
+    return CCPath.parse(objectName).isUnder(CCPath.parse(viewPath));
   }
 
   private static List<String> createViewPathElementList(final String viewPath, final List<CCPathElement> pathElements) {
-    final String regex = PatternUtil.convertToRegex(File.separator);
-    final List<String> viewPathElements = new ArrayList<String>(Arrays.asList(viewPath.split(regex)));
+    final List<String> viewPathElements = CCPath.splitSegments(viewPath);
 
     if (pathElements.size() > 0 && pathElements.get(0).getPathElement().length() == 0) {
       if (viewPathElements.size() > 0) {
@@ -110,45 +93,7 @@ public class CCPathElement {
   }
 
   public static List<CCPathElement> splitIntoPathElements(final String objectName) {
-    List<CCPathElement> result = new ArrayList<CCPathElement>();
-
-    final String regex = PatternUtil.convertToRegex(File.separator);
-    List<String> subNames = new ArrayList<String>(Arrays.asList(objectName.split(regex)));
-
-    boolean versionMode = false;
-    for (int i = 0; i < subNames.size(); i++) {
-
-      String currentViewPath = null;
-
-      final String subName = subNames.get(i);
-      final boolean beginOfVersion = subName.endsWith(CCParseUtil.CC_VERSION_SEPARATOR);
-
-      if (beginOfVersion || versionMode) {
-        final CCPathElement currentPair;
-        if (beginOfVersion) {
-          currentPair =
-            new CCPathElement(subName.substring(0, subName.length() - CCParseUtil.CC_VERSION_SEPARATOR.length()), currentViewPath);
-          versionMode = true;
-        } else {
-          currentPair = new CCPathElement(subName, currentViewPath);
-        }
-
-        result.add(currentPair);
-
-        for (i += 1; i < subNames.size(); i++) {
-          currentPair.appendVersion(subNames.get(i));
-          try {
-            Integer.parseInt(subNames.get(i));
-            break;
-          } catch (NumberFormatException e) {
-            //ignore
-          }
-        }
-      } else {
-        result.add(new CCPathElement(subName, currentViewPath));
-      }
-    }
-    return result;
+    return CCPath.parse(objectName).toPathElements();
   }
 
   private static void setInViewAttributes(List<CCPathElement> pathElements, String viewPath, int skipAtBeginCount) {
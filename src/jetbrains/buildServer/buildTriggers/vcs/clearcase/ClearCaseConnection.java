@@ -21,26 +21,55 @@ import com.intellij.execution.configurations.GeneralCommandLine;
 import com.intellij.openapi.util.io.FileUtil;
 import java.io.*;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import jetbrains.buildServer.CommandLineExecutor;
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.ProcessListener;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.cache.CommandResultCache;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.cache.ElementAttributeCache;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.cache.VersionTreeCache;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.cache.ViewMetadataCache;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpec;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecLoadRule;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecParseUtil;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.metrics.CommandMetrics;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseError;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseFacade;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.CommandFailedException;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.CommandScheduler;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.CommandTimeoutException;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.InteractiveProcess;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.InteractiveProcessFacade;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.InteractiveProcessPool;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.OutputLineProcessor;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.RecordingClearCaseFacade;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ReplayClearCaseFacade;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.StreamedProcessOutput;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.structure.ClearCaseStructureCache;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Version;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.VersionTree;
 import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.Hash;
 import jetbrains.buildServer.util.MultiMap;
-import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.IncludeRule;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
@@ -52,6 +81,9 @@ import org.jetbrains.annotations.NotNull;
 @SuppressWarnings({"SimplifiableIfStatement"})
 public class ClearCaseConnection {
   private final ViewPath myViewPath;
+  //parsed once, they are compared with every path the connection works with
+  private final CCPath myParsedViewWholePath;
+  private final CCPath myParsedClearCaseViewPath;
   private final boolean myUCMSupported;
 
   private static final Map<String, Semaphore> viewName2Semaphore = new ConcurrentHashMap<String, Semaphore>();
@@ -61,10 +93,14 @@ public class ClearCaseConnection {
   private final static int CC_LOG_FILE_SIZE_LIMIT = getLogSizeLimit();
 
   private static int getLogSizeLimit() {
+    return readIntFromSystem("cc.log.size.limit", 10);
+  }
+
+  private static int readIntFromSystem(final String prop, final int def) {
     try {
-      return Integer.parseInt(System.getProperty("cc.log.size.limit"));
+      return Integer.parseInt(System.getProperty(prop));
     } catch (Throwable e) {
-      return 10;
+      return def;
     }
   }
 
@@ -86,12 +122,72 @@ public class ClearCaseConnection {
                                       + LINE_END_DELIMITER + "\\n";
   private final MultiMap<String, HistoryElement> myChangesToIgnore = new MultiMap<String, HistoryElement>();
   private final MultiMap<String, HistoryElement> myDeletedVersions = new MultiMap<String, HistoryElement>();
+  //versions of the path prefixes resolved by getRelativePathWithVersions, depend on myChangesToIgnore
+  private final PathVersionTrie myResolvedPathVersions = new PathVersionTrie();
+  @NonNls private static final String SERVER_HOST_PREFIX = "Server host:";
   private static final Pattern END_OF_COMMAND_PATTERN = Pattern.compile("Command (.*) returned status (.*)");
   private static final boolean LOG_COMMANDS = System.getProperty("cc.log.commands") != null;
 
+  //clearcase.trace.level: none, commands or output (commands with their output); cc.log.commands means output
+  @NonNls private static final String TRACE_LEVEL = System.getProperty("clearcase.trace.level", LOG_COMMANDS ? "output" : "none");
+  private static final boolean TRACE_COMMANDS = "commands".equals(TRACE_LEVEL) || "output".equals(TRACE_LEVEL);
+  private static final boolean TRACE_OUTPUT = "output".equals(TRACE_LEVEL);
+  //only every n-th command is traced
+  private static final int TRACE_SAMPLE_RATE = Math.max(1, readIntFromSystem("clearcase.trace.sample", 1));
+  private static final AtomicLong ourTraceCounter = new AtomicLong();
+
   private final ConfigSpec myConfigSpec;
   private static final String UPDATE_LOG = "teamcity.clearcase.update.result.log";
-  public static ClearCaseFacade ourProcessExecutor = new ClearCaseFacade() {
+  private static final int BATCH_SIZE = Math.max(1, readIntFromSystem("clearcase.batch.size", 50));
+  private static final int COMMAND_RETRIES = readIntFromSystem("clearcase.command.retries", 1);
+  //commands which only read data, they are repeated after a timeout
+  private static final Set<String> RETRIABLE_COMMANDS = new HashSet<String>(Arrays.asList(
+    "ls", "lsvtree", "describe", "lshistory", "catcs", "pwv", "lsview", "lsstream", "pwd", "get"));
+  //lshistory operations which change cached query results: predecessors (rmver)
+  private static final Set<String> RESULT_CHANGING_OPERATIONS = new HashSet<String>(Arrays.asList("rmver"));
+  private static final String PREVIOUS_VERSION_FORMAT = "%PVn" + LINE_END_DELIMITER + "\\n";
+  private static final String DESCRIPTION_FORMAT = "%c" + LINE_END_DELIMITER + "\\n";
+  private static final String OID_FORMAT = "%On" + LINE_END_DELIMITER + "\\n";
+  private static final CommandScheduler ourScheduler = new CommandScheduler(readIntFromSystem("clearcase.server.initial.commands", 4),
+                                                                          readIntFromSystem("clearcase.server.min.commands", 1),
+                                                                          readIntFromSystem("clearcase.server.max.commands", 16),
+                                                                          readIntFromSystem("clearcase.server.interactive.reserve", 1),
+                                                                          readIntFromSystem("clearcase.server.latency.tolerance", 300) / 100.0);
+  //VOB tag -> host of its VOB server, view path -> key of the server the view's commands are scheduled for
+  private static final Map<String, VobServerHost> ourVobServerHosts = new ConcurrentHashMap<String, VobServerHost>();
+  private static final Map<String, String> ourViewServers = new ConcurrentHashMap<String, String>();
+  private static final long VOB_SERVER_RETRY_MILLIS = 1000L * readIntFromSystem("clearcase.vob.server.retry.interval", 300);
+  //allowed difference between the clocks of this host and the VOB servers
+  private static final long CLOCK_SKEW_MILLIS = 1000L * readIntFromSystem("clearcase.version.tree.cache.clock.skew", 300);
+  private static final VersionTreeCache ourVersionTreeCache = new VersionTreeCache(readIntFromSystem("clearcase.version.tree.cache.size", 10000),
+                                                                                  1000L * readIntFromSystem("clearcase.version.tree.cache.ttl", 1800),
+                                                                                  CLOCK_SKEW_MILLIS);
+  //labels are not tracked by lshistory, version trees of the views with label rules are read again after this time
+  private static final long VERSION_TREE_LABELS_TTL_MILLIS = 1000L * readIntFromSystem("clearcase.version.tree.cache.label.ttl", 60);
+  private static final ViewMetadataCache ourViewMetadataCache = new ViewMetadataCache(1000L * readIntFromSystem("clearcase.config.spec.check.interval", 60),
+                                                                                      1000L * readIntFromSystem("clearcase.view.metadata.ttl", 3600));
+  private static final CommandResultCache ourCommandCache = new CommandResultCache(readIntFromSystem("clearcase.command.cache.size", 10000),
+                                                                                   readIntFromSystem("clearcase.command.cache.entry.limit", 64 * 1024),
+                                                                                   readIntFromSystem("clearcase.command.cache.disk.size", 100000));
+  //chtype and protect are not reported by lshistory, cached attributes are read again after the ttl
+  private static final ElementAttributeCache ourAttributeCache = new ElementAttributeCache(readIntFromSystem("clearcase.element.attributes.cache.size", 50000),
+                                                                                          1000L * readIntFromSystem("clearcase.element.attributes.cache.ttl", 86400),
+                                                                                          readIntFromSystem("clearcase.element.attributes.cache.disk.size", 100000));
+  private static final boolean USE_HISTORY_JOURNAL = "true".equals(System.getProperty("clearcase.history.journal"));
+  //queried view path -> its history journal
+  private static final Map<String, HistoryJournal> ourHistoryJournals = new HashMap<String, HistoryJournal>();
+  private static volatile File ourHistoryJournalDir;
+  private static final boolean USE_PARALLEL_HISTORY = "true".equals(System.getProperty("clearcase.history.parallel"));
+  private static final ExecutorService ourHistoryExecutor = Executors.newFixedThreadPool(Math.max(1, readIntFromSystem("clearcase.history.parallel.threads", 4)), new ThreadFactory() {
+    public Thread newThread(final Runnable runnable) {
+      final Thread thread = new Thread(runnable, "ClearCase history reader");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  private static final int HISTORY_BATCHES_IN_MEMORY = readIntFromSystem("clearcase.history.parallel.batches", 16);
+  @NonNls private static final String VOBS_DIR = "vobs";
+  public static ClearCaseFacade ourProcessExecutor = configureRecordOrReplay(new ClearCaseFacade() {
     public ExecResult execute(final GeneralCommandLine commandLine, final ProcessListener listener) throws ExecutionException {
       CommandLineExecutor commandLineConnection = new CommandLineExecutor(commandLine);      
       commandLineConnection.addListener(listener);
@@ -101,9 +197,26 @@ public class ClearCaseConnection {
     public InteractiveProcessFacade createProcess(final GeneralCommandLine generalCommandLine) throws ExecutionException {
       return createInteractiveProcess(generalCommandLine.createProcess());
     }
-  };
+
+    public Process startProcess(final GeneralCommandLine generalCommandLine) throws ExecutionException {
+      return generalCommandLine.createProcess();
+    }
+  });
+
+  private static final InteractiveProcessPool ourProcessPool = new InteractiveProcessPool(new InteractiveProcessPool.ProcessFactory() {
+    @NotNull
+    public InteractiveProcessFacade createProcess(@NotNull final String workingDirectory) throws ExecutionException {
+      final GeneralCommandLine generalCommandLine = new GeneralCommandLine();
+      generalCommandLine.setExePath("cleartool");
+      generalCommandLine.addParameter("-status");
+      generalCommandLine.setWorkDirectory(workingDirectory);
+      return ourProcessExecutor.createProcess(generalCommandLine);
+    }
+  }, readIntFromSystem("clearcase.process.pool.size", 4), 1000L * readIntFromSystem("clearcase.process.pool.idle.timeout", 300));
 
   private final ClearCaseStructureCache myCache;
+  //resolved by the first scheduled command
+  private volatile String myServer;
   private final VcsRoot myRoot;
   private final boolean myConfigSpecWasChanged;
 
@@ -126,6 +239,8 @@ public class ClearCaseConnection {
     myUCMSupported = ucmSupported;
 
     myViewPath = viewPath;
+    myParsedViewWholePath = CCPath.parse(myViewPath.getWholePath());
+    myParsedClearCaseViewPath = CCPath.parse(myViewPath.getClearCaseViewPath());
 
     if (!isClearCaseView(myViewPath.getClearCaseViewPath())) {
       throw new VcsException("Invalid ClearCase view: \"" + myViewPath.getClearCaseViewPath() + "\"");
@@ -140,11 +255,15 @@ public class ClearCaseConnection {
       oldConfigSpec = ConfigSpecParseUtil.getConfigSpecFromStream(myViewPath.getClearCaseViewPathFile(), new FileInputStream(configSpecFile), configSpecFile);
     }
 
-    myConfigSpec = checkCSChange && configSpecFile != null ?
-                                  ConfigSpecParseUtil.getAndSaveConfigSpec(myViewPath, configSpecFile) :
-                                  ConfigSpecParseUtil.getConfigSpec(myViewPath);
-
-    myConfigSpec.setViewIsDynamic(isViewIsDynamic());
+    final boolean viewIsDynamic = isViewIsDynamic();
+    final ConfigSpec configSpec = getConfigSpec(myViewPath, viewIsDynamic);
+    if (checkCSChange && configSpecFile != null && (!configSpecFile.isFile() || !configSpec.equals(oldConfigSpec))) {
+      myConfigSpec = ConfigSpecParseUtil.getAndSaveConfigSpec(myViewPath, configSpecFile);
+      myConfigSpec.setViewIsDynamic(viewIsDynamic);
+    }
+    else {
+      myConfigSpec = configSpec;
+    }
 
     myConfigSpecWasChanged = checkCSChange && configSpecFile != null && !myConfigSpec.equals(oldConfigSpec);
 
@@ -158,11 +277,100 @@ public class ClearCaseConnection {
 
     updateCurrentView();
 
-    final GeneralCommandLine generalCommandLine = new GeneralCommandLine();
-    generalCommandLine.setExePath("cleartool");
-    generalCommandLine.addParameter("-status");
-    generalCommandLine.setWorkDirectory(getViewWholePath());
-    myProcess = ourProcessExecutor.createProcess(generalCommandLine);
+    myProcess = ourProcessPool.lease(getViewWholePath());
+  }
+
+  @NotNull
+  private String getServer() {
+    String server = myServer;
+    if (server == null) {
+      server = resolveServer();
+      myServer = server;
+    }
+    return server;
+  }
+
+  /**
+   * Commands are scheduled per VOB server, the server of the VOB containing the view path is found by lsvob -long.
+   * If it cannot be found the VOB tag (or the view path) is used instead, lsvob is tried again after
+   * clearcase.vob.server.retry.interval seconds.
+   */
+  @NotNull
+  private String resolveServer() {
+    final String vobTag = getVobTag();
+    if (vobTag == null) {
+      return getViewWholePath();
+    }
+    VobServerHost host = ourVobServerHosts.get(vobTag);
+    if (host == null || host.myRetryTime < System.currentTimeMillis()) {
+      final String resolvedHost = readVobServerHost(vobTag);
+      host = resolvedHost != null
+             ? new VobServerHost(resolvedHost, Long.MAX_VALUE)
+             : new VobServerHost(vobTag, System.currentTimeMillis() + VOB_SERVER_RETRY_MILLIS);
+      ourVobServerHosts.put(vobTag, host);
+    }
+    ourViewServers.put(getViewWholePath(), host.myHost);
+    return host.myHost;
+  }
+
+  private static class VobServerHost {
+    private final String myHost;
+    private final long myRetryTime;
+
+    private VobServerHost(final String host, final long retryTime) {
+      myHost = host;
+      myRetryTime = retryTime;
+    }
+  }
+
+  @Nullable
+  private String getVobTag() {
+    final List<CCPathElement> relativePath = CCPathElement.splitIntoPathElements(myViewPath.getRelativePathWithinTheView());
+    final StringBuffer tag = new StringBuffer();
+    for (CCPathElement element : relativePath) {
+      if (element.getPathElement().length() == 0) continue;
+      tag.append(File.separatorChar).append(element.getPathElement());
+      if (!"vobs".equals(element.getPathElement())) {
+        return tag.toString();
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  private String readVobServerHost(@NotNull final String vobTag) {
+    try {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(
+        executeSimpleProcess(getViewWholePath(), new String[]{"lsvob", "-long", vobTag})));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          final String trimmed = line.trim();
+          if (trimmed.startsWith(SERVER_HOST_PREFIX)) {
+            return trimmed.substring(SERVER_HOST_PREFIX.length()).trim();
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (Exception e) {
+      LOG.debug("Cannot read VOB server host of " + vobTag, e);
+    }
+    return null;
+  }
+
+  @NotNull
+  private static String getServer(@NotNull final String viewPath) {
+    final String server = ourViewServers.get(viewPath);
+    return server != null ? server : viewPath;
+  }
+
+  private static void acquireSlot(@NotNull final String server) throws VcsException {
+    try {
+      ourScheduler.acquire(server);
+    } catch (InterruptedIOException e) {
+      throw new VcsException(e);
+    }
   }
 
   public static InteractiveProcess createInteractiveProcess(final Process process) {
@@ -177,6 +385,66 @@ public class ClearCaseConnection {
     }
   }
 
+  /**
+   * clearcase.replay.file replaces cleartool by a recorded session (clearcase.replay.latency is "none", "recorded"
+   * or milliseconds), clearcase.record.file records the session of the real cleartool.
+   */
+  private static ClearCaseFacade configureRecordOrReplay(final ClearCaseFacade facade) {
+    final String replayFile = System.getProperty("clearcase.replay.file");
+    final String recordFile = System.getProperty("clearcase.record.file");
+    try {
+      if (replayFile != null) {
+        Loggers.VCS.info("ClearCase: replaying cleartool session from " + replayFile);
+        return new ReplayClearCaseFacade(new File(replayFile), System.getProperty("clearcase.replay.latency"));
+      }
+      if (recordFile != null) {
+        Loggers.VCS.info("ClearCase: recording cleartool session to " + recordFile);
+        return new RecordingClearCaseFacade(facade, new File(recordFile));
+      }
+    } catch (IOException e) {
+      Loggers.VCS.error("ClearCase: cannot open cleartool session record: " + e.getLocalizedMessage(), e);
+    }
+    return facade;
+  }
+
+  /**
+   * Sets the directory where the results of queries about fixed versions are persisted.
+   */
+  public static void setCommandCacheDir(@Nullable final File dir) {
+    ourCommandCache.setDirectory(dir);
+  }
+
+  /**
+   * Sets the directory where the attributes of elements are persisted.
+   */
+  public static void setAttributeCacheDir(@Nullable final File dir) {
+    ourAttributeCache.setDirectory(dir);
+  }
+
+  /**
+   * Sets the directory of the history journals, used only if clearcase.history.journal system property is true.
+   */
+  public static void setHistoryJournalDir(@Nullable final File dir) {
+    ourHistoryJournalDir = dir;
+  }
+
+  public static void disposeProcessPool() {
+    ourProcessPool.dispose();
+  }
+
+  private void restartProcess() throws VcsException {
+    try {
+      myProcess.destroy();
+    } catch (Throwable e) {
+      //ignore
+    }
+    try {
+      myProcess = ourProcessPool.lease(getViewWholePath());
+    } catch (ExecutionException e) {
+      throw new VcsException(e.getLocalizedMessage(), e);
+    }
+  }
+
   public String getViewWholePath() {
     return myViewPath.getWholePath();
   }
@@ -209,6 +477,89 @@ public class ClearCaseConnection {
 
   }
 
+  /**
+   * Same as {@link #getLastVersionElement} for several elements at once, the version trees are requested in one pipelined batch.
+   * Elements whose last version is not found are skipped.
+   */
+  @NotNull
+  public List<DirectoryChildElement> getLastVersionElements(final List<String> pathsWithoutVersion, final List<DirectoryChildElement.Type> types)
+    throws VcsException {
+    final List<DirectoryChildElement> result = new ArrayList<DirectoryChildElement>();
+    try {
+      final List<VersionTree> versionTrees = readVersionTrees(pathsWithoutVersion);
+
+      for (int i = 0; i < pathsWithoutVersion.size(); i++) {
+        final String pathWithoutVersion = pathsWithoutVersion.get(i);
+        final DirectoryChildElement.Type type = types.get(i);
+        final Version lastElementVersion = getLastVersion(pathWithoutVersion, versionTrees.get(i), DirectoryChildElement.Type.FILE.equals(type));
+        if (lastElementVersion != null) {
+          result.add(new DirectoryChildElement(type, extractElementPath(pathWithoutVersion), lastElementVersion.getVersion(),
+                                               pathWithoutVersion + lastElementVersion.getWholeName(), lastElementVersion.getWholeName(), pathWithoutVersion));
+        } else {
+          Loggers.VCS.info("ClearCase: last element version not found for " + pathWithoutVersion);
+        }
+      }
+    } catch (IOException e) {
+      throw new VcsException(e);
+    }
+    return result;
+  }
+
+  /**
+   * Reads the version trees of the elements, the lsvtree commands for the elements which are not cached
+   * are pipelined on the interactive process.
+   */
+  @NotNull
+  public List<VersionTree> readVersionTrees(final List<String> paths) throws IOException, VcsException {
+    final VersionTree[] versionTrees = new VersionTree[paths.size()];
+    final List<Integer> toRead = new ArrayList<Integer>();
+    final List<String[]> commands = new ArrayList<String[]>();
+    for (int i = 0; i < paths.size(); i++) {
+      versionTrees[i] = createCachedVersionTree(paths.get(i));
+      if (versionTrees[i] == null) {
+        toRead.add(i);
+        commands.add(new String[]{"lsvtree", "-obs", "-all", insertDotAfterVOB(paths.get(i))});
+      }
+    }
+
+    if (!commands.isEmpty()) {
+      readVersionTrees(paths, toRead, commands, versionTrees);
+    }
+
+    final List<VersionTree> result = new ArrayList<VersionTree>();
+    for (int i = 0; i < paths.size(); i++) {
+      addDeletedVersions(paths.get(i), versionTrees[i]);
+      result.add(versionTrees[i]);
+    }
+    return result;
+  }
+
+  private void readVersionTrees(final List<String> paths,
+                                final List<Integer> toRead,
+                                final List<String[]> commands,
+                                final VersionTree[] versionTrees) throws IOException, VcsException {
+    final long readTime = System.currentTimeMillis();
+    final List<VersionTreeReader> readers = executeWithRestart("lsvtree", commands.size(), new InteractiveCommand<List<VersionTreeReader>>() {
+      public List<VersionTreeReader> execute() throws IOException, VcsException {
+        final List<VersionTreeReader> readers = new ArrayList<VersionTreeReader>();
+        final List<OutputLineProcessor> processors = new ArrayList<OutputLineProcessor>();
+        for (String[] ignored : commands) {
+          final VersionTreeReader reader = new VersionTreeReader(new VersionTree());
+          readers.add(reader);
+          processors.add(CommandMetrics.countOutput(reader, getViewWholePath(), "lsvtree"));
+        }
+        myProcess.executeBatch(commands, processors);
+        return readers;
+      }
+    });
+
+    for (int j = 0; j < toRead.size(); j++) {
+      final int i = toRead.get(j);
+      versionTrees[i] = readers.get(j).myVersionTree;
+      cacheVersionTree(paths.get(i), readers.get(j).myVersions, readTime);
+    }
+  }
+
   @Nullable
   private Version getLastVersion(final String path, final VersionTree versionTree, final boolean isFile) throws IOException, VcsException {
     final String elementPath = extractElementPath(path);
@@ -251,28 +602,84 @@ public class ClearCaseConnection {
   }
 
   private void readVersionTree(final String path, final VersionTree versionTree) throws IOException, VcsException {
-    final InputStream inputStream = executeAndReturnProcessInput(new String[]{"lsvtree", "-obs", "-all", insertDotAfterVOB(path)});
+    final List<String> cachedVersions = getCachedVersions(path);
+    if (cachedVersions != null) {
+      for (String version : cachedVersions) {
+        versionTree.addVersion(version);
+      }
+    } else {
+      final long readTime = System.currentTimeMillis();
+      final VersionTreeReader reader = new VersionTreeReader(versionTree);
+      executeAndProcessOutput(new String[]{"lsvtree", "-obs", "-all", insertDotAfterVOB(path)}, reader);
+      cacheVersionTree(path, reader.myVersions, readTime);
+    }
+    addDeletedVersions(path, versionTree);
+  }
 
-    final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+  /**
+   * @return the version tree built from the cached lsvtree output (without deleted versions) or null if it is not cached
+   */
+  @Nullable
+  private VersionTree createCachedVersionTree(final String path) throws VcsException {
+    final List<String> versions = getCachedVersions(path);
+    if (versions == null) return null;
+    final VersionTree versionTree = new VersionTree();
+    for (String version : versions) {
+      versionTree.addVersion(version);
+    }
+    return versionTree;
+  }
 
+  @Nullable
+  private List<String> getCachedVersions(final String path) throws VcsException {
+    if (!ourVersionTreeCache.isEnabled()) return null;
+    return ourVersionTreeCache.get(getVersionTreeCacheKey(path), myConfigSpec.hasLabelRules() ? VERSION_TREE_LABELS_TTL_MILLIS : 0);
+  }
 
-    try {
+  private void cacheVersionTree(final String path, final List<String> versions, final long readTime) throws VcsException {
+    if (ourVersionTreeCache.isEnabled()) {
+      ourVersionTreeCache.put(getPathWithoutVersions(path), getVersionTreeCacheKey(path), versions, readTime);
+    }
+  }
 
-      String line;
-      while ((line = reader.readLine()) != null) {
-        if (line.trim().length() > 0) {
-          String elementVersion = readVersion(line);
-          //System.out.println("add version " + elementVersion);
-          versionTree.addVersion(elementVersion);
-        }
-      }
+  private String getVersionTreeCacheKey(final String path) throws VcsException {
+    return CCPathElement.normalizePath(path);
+  }
 
-      final List<HistoryElement> deletedVersions = myDeletedVersions.get(getPathWithoutVersions(path));
-      for (HistoryElement deletedVersion : deletedVersions) {
-        versionTree.addVersion(normalizeVersion(deletedVersion.getObjectVersion()));
+  /**
+   * Keeps the cached version tree of the element up to date, called for every history event read from lshistory.
+   */
+  public void historyEventRead(final HistoryElement element, final Date eventDate) throws VcsException {
+    if (ourVersionTreeCache.isEnabled()) {
+      ourVersionTreeCache.eventRead(element.getObjectName(), element.getEvent(), normalizeVersion(element.getObjectVersion()), eventDate.getTime());
+    }
+    if (RESULT_CHANGING_OPERATIONS.contains(element.getOperation())) {
+      forgetCachedResults(element);
+    }
+  }
+
+  private void addDeletedVersions(final String path, final VersionTree versionTree) throws VcsException {
+    final List<HistoryElement> deletedVersions = myDeletedVersions.get(getPathWithoutVersions(path));
+    for (HistoryElement deletedVersion : deletedVersions) {
+      versionTree.addVersion(normalizeVersion(deletedVersion.getObjectVersion()));
+    }
+  }
+
+  private static class VersionTreeReader implements OutputLineProcessor {
+    private final VersionTree myVersionTree;
+    private final List<String> myVersions = new ArrayList<String>();
+
+    private VersionTreeReader(final VersionTree versionTree) {
+      myVersionTree = versionTree;
+    }
+
+    public void processLine(@NotNull final String line) throws VcsException {
+      if (line.trim().length() > 0) {
+        String elementVersion = readVersion(line);
+        //System.out.println("add version " + elementVersion);
+        myVersions.add(elementVersion);
+        myVersionTree.addVersion(elementVersion);
       }
-    } finally {
-      reader.close();
     }
   }
 
@@ -289,28 +696,160 @@ public class ClearCaseConnection {
     return version;
   }
 
+  /**
+   * Returns lshistory output containing all the events since the version. If the history journal is enabled,
+   * the output may contain older events too.
+   */
   public InputStream getChanges(String since) throws IOException, VcsException {
     /*
     execute(new String[]{"lshistory", "-all","-since", since, "-fmt",FORMAT,myViewName});
     return readFromProcessInput();
     */
 
-    return executeSimpleProcess(getViewWholePath(), new String[]{"lshistory", "-all", "-since", since, "-fmt", FORMAT, insertDotAfterVOB(getViewWholePath())});
+    return getChanges(since, insertDotAfterVOB(getViewWholePath()));
+  }
+
+  /**
+   * Same events as {@link #getChanges(String)}. If clearcase.history.parallel system property is true and the view path
+   * contains several load rules, the history of every load rule is read concurrently and the events are merged by date.
+   */
+  @NotNull
+  HistoryReader readChanges(final String since) throws IOException, VcsException {
+    final List<String> queryPaths = USE_PARALLEL_HISTORY ? getHistoryQueryPaths() : null;
+    if (queryPaths == null) {
+      return new HistoryRecordReader(getChanges(since));
+    }
+
+    final List<MergedHistoryReader.Source> sources = new ArrayList<MergedHistoryReader.Source>();
+    for (final String queryPath : queryPaths) {
+      sources.add(new MergedHistoryReader.Source() {
+        @NotNull
+        public HistoryReader open() throws IOException, VcsException {
+          return new HistoryRecordReader(getChanges(since, queryPath));
+        }
+      });
+    }
+    return new MergedHistoryReader(sources, ourHistoryExecutor, HISTORY_BATCHES_IN_MEMORY);
+  }
+
+  /**
+   * @return load rules inside the view path if there are several of them, null if the view path is to be queried as a whole
+   */
+  @Nullable
+  private List<String> getHistoryQueryPaths() throws VcsException {
+    final List<ConfigSpecLoadRule> loadRules = myConfigSpec.getLoadRules();
+    final int vobIndex = myParsedClearCaseViewPath.size();
+    final Set<CCPath> roots = new LinkedHashSet<CCPath>();
+    for (ConfigSpecLoadRule loadRule : loadRules) {
+      final CCPath loadRulePath = CCPath.parse(new ViewPath(getClearCaseViewPath(), loadRule.getRelativePath()).getWholePath());
+      if (myParsedViewWholePath.isUnder(loadRulePath)) {
+        //the view path is loaded as a whole
+        return null;
+      }
+      if (!loadRulePath.isUnder(myParsedViewWholePath)) continue;
+      if (loadRulePath.size() <= vobIndex + 1 && VOBS_DIR.equalsIgnoreCase(loadRulePath.getName(loadRulePath.size() - 1))) {
+        //"vobs" directory is not an element, lshistory cannot be run for it
+        return null;
+      }
+      roots.add(loadRulePath);
+    }
+
+    final List<String> result = new ArrayList<String>();
+    for (CCPath root : roots) {
+      if (!isUnderAnotherRoot(root, roots)) {
+        result.add(insertDotAfterVOB(root.toString()));
+      }
+    }
+    return result.size() > 1 ? result : null;
+  }
+
+  private static boolean isUnderAnotherRoot(final CCPath root, final Set<CCPath> roots) {
+    for (CCPath anotherRoot : roots) {
+      if (anotherRoot.size() < root.size() && root.isUnder(anotherRoot)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private InputStream getChanges(final String since, final String queryPath) throws IOException, VcsException {
+    final HistoryJournal journal = getHistoryJournal(queryPath);
+    if (journal == null) {
+      return readChanges(since, queryPath);
+    }
+    try {
+      return journal.getChanges(CCParseUtil.parseVersionDate(since), new HistoryJournal.Fetcher() {
+        @NotNull
+        public InputStream fetch(@NotNull final String fetchSince) throws VcsException {
+          return readChanges(fetchSince, queryPath);
+        }
+      });
+    } catch (ParseException e) {
+      throw new VcsException(e);
+    }
+  }
+
+  private InputStream readChanges(final String since, final String queryPath) throws VcsException {
+    return executeStreamingProcess(getViewWholePath(), new String[]{"lshistory", "-all", "-since", since, "-fmt", FORMAT, queryPath});
+  }
+
+  @Nullable
+  private static HistoryJournal getHistoryJournal(final String queryPath) {
+    final File baseDir = ourHistoryJournalDir;
+    if (!USE_HISTORY_JOURNAL || baseDir == null) return null;
+    synchronized (ourHistoryJournals) {
+      HistoryJournal journal = ourHistoryJournals.get(queryPath);
+      if (journal == null) {
+        final File dir = new File(baseDir, String.valueOf(Hash.calc(queryPath)));
+        if (!dir.isDirectory() && !dir.mkdirs()) return null;
+        journal = new HistoryJournal(dir, queryPath,
+                                     1000L * readIntFromSystem("clearcase.history.journal.overlap", 300),
+                                     CLOCK_SKEW_MILLIS,
+                                     1000L * readIntFromSystem("clearcase.history.journal.retention", 30 * 24 * 3600),
+                                     readIntFromSystem("clearcase.history.journal.max.segments", 32));
+        ourHistoryJournals.put(queryPath, journal);
+      }
+      return journal;
+    }
   }
 
   public InputStream listDirectoryContent(final String dirPath) throws ExecutionException, IOException, VcsException {
-    return executeAndReturnProcessInput(new String[]{"ls", "-long", insertDotAfterVOB(dirPath)});
+    return executeQuery(new String[]{"ls", "-long", insertDotAfterVOB(dirPath)}, dirPath);
   }
 
   public void loadFileContent(final File tempFile, final String line)
     throws ExecutionException, InterruptedException, IOException, VcsException {
-    myProcess.copyFileContentTo(this, line, tempFile);
+    executeWithRestart("get", 1, new InteractiveCommand<Object>() {
+      public Object execute() throws IOException, VcsException {
+        myProcess.copyFileContentTo(ClearCaseConnection.this, line, tempFile);
+        CommandMetrics.outputRead(getViewWholePath(), "get", tempFile.length());
+        return null;
+      }
+    });
   }
 
 
   public void collectChangesToIgnore(final String lastVersion) throws VcsException {
+    readHistory(null, lastVersion);
+  }
+
+  /**
+   * Same as {@link #collectChangesToIgnore} followed by {@link CCParseUtil#processChangedFiles} for the changes
+   * between the versions, the history is read only once.
+   */
+  public void collectChanges(final String fromVersion, final String lastVersion, final ChangedFilesProcessor processor)
+    throws VcsException, IOException {
+    CCParseUtil.processChangedElements(this, readHistory(fromVersion, lastVersion), processor);
+  }
+
+  /**
+   * Collects the changes to ignore and returns the changes between the versions to be processed after that.
+   */
+  @NotNull
+  private List<HistoryElement> readHistory(@Nullable final String fromVersion, final String lastVersion) throws VcsException {
+    myResolvedPathVersions.clear();
     try {
-      CCParseUtil.processChangedFiles(this, lastVersion, null, new ChangedFilesProcessor() {
+      return CCParseUtil.readChangedFiles(this, fromVersion, lastVersion, new ChangedFilesProcessor() {
         public void processChangedFile(final HistoryElement element) {
           myChangesToIgnore.putValue(element.getObjectName(), element);
           LOG.debug("Change was ignored: changed file " + element.getLogRepresentation());
@@ -330,6 +869,9 @@ public class ClearCaseConnection {
       throw new VcsException(e);
     } catch (IOException e) {
       throw new VcsException(e);
+    } finally {
+      //the versions could be resolved before all the changes to ignore were known
+      myResolvedPathVersions.clear();
     }
 
   }
@@ -371,52 +913,137 @@ public class ClearCaseConnection {
       params = new String[]{"describe", insertDotAfterVOB(getViewWholePath())};
     }
 
-    final InputStream input = executeAndReturnProcessInput(params);
-    final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-
-    try {
-      String line;
-      while ((line = reader.readLine()) != null) {
+    executeAndProcessOutput(params, new OutputLineProcessor() {
+      public void processLine(@NotNull final String line) {
         result.append(line).append('\n');
       }
-    } finally {
-      reader.close();
-    }
+    });
 
     return result.toString();
   }
 
+  /**
+   * Unlike {@link #executeSimpleProcess} does not collect the output in memory, the returned stream reads it directly
+   * from the process. The stream must be closed, the process failure is reported on close.
+   */
+  public static InputStream executeStreamingProcess(String viewPath, String[] arguments) throws VcsException {
+    final GeneralCommandLine commandLine = new GeneralCommandLine();
+    commandLine.setExePath("cleartool");
+    commandLine.setWorkDirectory(viewPath);
+    commandLine.addParameters(arguments);
+
+    if (isTraced()) {
+      Loggers.VCS.info("ClearCase executing " + commandLine.getCommandLineString());
+      ourLogger.log("\n" + commandLine.getCommandLineString());
+    }
+    LOG.info("streaming execute: " + commandLine.getCommandLineString());
+
+    final String subcommand = getSubcommand(arguments);
+    //the slot is held until the output is closed
+    final String server = getServer(viewPath);
+    acquireSlot(server);
+    final long start = System.currentTimeMillis();
+    final InputStream output;
+    try {
+      output = CommandMetrics.countOutput(new StreamedProcessOutput(ourProcessExecutor.startProcess(commandLine), arguments), viewPath, subcommand);
+    } catch (ExecutionException e) {
+      //a command which cannot be started is a congestion signal too
+      ourScheduler.commandCompleted(server, subcommand, System.currentTimeMillis() - start, true);
+      ourScheduler.release(server);
+      CommandMetrics.commandExecuted(viewPath, subcommand, System.currentTimeMillis() - start, true);
+      throw new VcsException(e);
+    }
+    return new FilterInputStream(output) {
+      private boolean myClosed = false;
+      private boolean myReadFailed = false;
+      //the time the server answered, the rest of the time depends on how fast the output is consumed
+      private long myResponseTime = 0;
+
+      public int read() throws IOException {
+        try {
+          return responded(super.read());
+        } catch (IOException e) {
+          myReadFailed = true;
+          throw e;
+        }
+      }
+
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+        try {
+          return responded(super.read(b, off, len));
+        } catch (IOException e) {
+          myReadFailed = true;
+          throw e;
+        }
+      }
+
+      private int responded(final int result) {
+        if (myResponseTime == 0) {
+          myResponseTime = System.currentTimeMillis();
+        }
+        return result;
+      }
+
+      public void close() throws IOException {
+        if (myClosed) return;
+        myClosed = true;
+        boolean failed = true;
+        try {
+          super.close();
+          failed = false;
+        } finally {
+          final long end = System.currentTimeMillis();
+          ourScheduler.commandCompleted(server, subcommand, (myResponseTime == 0 ? end : myResponseTime) - start, failed || myReadFailed);
+          ourScheduler.release(server);
+          CommandMetrics.commandExecuted(viewPath, subcommand, end - start, failed || myReadFailed);
+        }
+      }
+    };
+  }
+
   public static InputStream executeSimpleProcess(String viewPath, String[] arguments) throws VcsException {
     final GeneralCommandLine commandLine = new GeneralCommandLine();
     commandLine.setExePath("cleartool");
     commandLine.setWorkDirectory(viewPath);
     commandLine.addParameters(arguments);
 
-    if (LOG_COMMANDS) {
+    final boolean traced = isTraced();
+    if (traced) {
       Loggers.VCS.info("ClearCase executing " + commandLine.getCommandLineString());
       ourLogger.log("\n" + commandLine.getCommandLineString());
     }
     LOG.info("simple execute: " + commandLine.getCommandLineString());
     final ByteArrayOutputStream out = new ByteArrayOutputStream();
     final ByteArrayOutputStream err = new ByteArrayOutputStream();
-    if (LOG_COMMANDS) {
-      ourLogger.log("\n");
-    }
 
+    final String subcommand = getSubcommand(arguments);
+    final String server = getServer(viewPath);
+    acquireSlot(server);
+    final long start = System.currentTimeMillis();
     final ExecResult execResult;
+    boolean executed = false;
     try {
       execResult = ourProcessExecutor.execute(commandLine, createProcessHandlerListener(out, err)); 
+      executed = true;
     } catch (ExecutionException e) {
+      CommandMetrics.commandExecuted(viewPath, subcommand, System.currentTimeMillis() - start, true);
       throw new VcsException(e);
+    } finally {
+      //a command which cannot be executed is a congestion signal
+      ourScheduler.commandCompleted(server, subcommand, System.currentTimeMillis() - start, !executed);
+      ourScheduler.release(server);
     }
     LOG.debug("result: " + execResult.toString());
 
     final int processResult = execResult.getExitCode();
+    CommandMetrics.outputRead(viewPath, subcommand, out.size());
+    CommandMetrics.commandExecuted(viewPath, subcommand, System.currentTimeMillis() - start, isFailed(processResult, err, arguments));
     if (processResult != 0) {
       if (err.size() > 0) {
         final String errDescr = new String(err.toByteArray());
-        if (!errDescr.contains("A snapshot view update is in progress") && !errDescr.contains("An update is already in progress")) {
-          throw new VcsException(errDescr);
+        final CommandFailedException failure = new CommandFailedException(arguments, errDescr);
+        if (failure.getError() != ClearCaseError.UPDATE_IN_PROGRESS) {
+          throw new VcsException(errDescr, failure);
         } else {
           return new ByteArrayInputStream(out.toByteArray());
         }
@@ -424,13 +1051,29 @@ public class ClearCaseConnection {
         throw new VcsException("Process " + commandLine.getCommandLineString() + " returns " + processResult);
       }
     } else {
-      if (LOG_COMMANDS) {
+      if (traced && TRACE_OUTPUT) {
         ourLogger.log("\n" + new String(out.toByteArray()));
       }
       return new ByteArrayInputStream(out.toByteArray());
     }
   }
 
+  private static boolean isFailed(final int exitCode, final ByteArrayOutputStream err, final String[] arguments) {
+    return exitCode != 0
+           && (err.size() == 0 || new CommandFailedException(arguments, new String(err.toByteArray())).getError() != ClearCaseError.UPDATE_IN_PROGRESS);
+  }
+
+  /**
+   * Decides whether the next command is written to the trace log, see clearcase.trace.level and clearcase.trace.sample.
+   */
+  private static boolean isTraced() {
+    return TRACE_COMMANDS && (TRACE_SAMPLE_RATE == 1 || ourTraceCounter.getAndIncrement() % TRACE_SAMPLE_RATE == 0);
+  }
+
+  private static String getSubcommand(final String[] arguments) {
+    return arguments.length > 0 ? arguments[0] : "";
+  }
+
   private static ProcessListener createProcessHandlerListener(
     final ByteArrayOutputStream out,
     final ByteArrayOutputStream err
@@ -445,9 +1088,6 @@ public class ClearCaseConnection {
       }
 
       public void onOutTextAvailable(final String text, final OutputStream output){
-        if (LOG_COMMANDS) {
-          ourLogger.log(text);
-        }
         try {
           out.write(text.getBytes());
         } catch (IOException e) {
@@ -472,26 +1112,276 @@ public class ClearCaseConnection {
   public String getVersionDescription(final String fullPath) {
     try {
       String[] params = {"describe", "-fmt", "%c", "-pname", insertDotAfterVOB(fullPath)};
-      final InputStream input = executeAndReturnProcessInput(params);
-      final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-      try {
-        final String line = reader.readLine();
-        if (line != null) {
-          return line;
-        } else {
-          return "";
+      final StringBuffer firstLine = new StringBuffer();
+      final boolean[] lineRead = new boolean[]{false};
+      executeAndProcessOutput(params, new OutputLineProcessor() {
+        public void processLine(@NotNull final String line) {
+          if (!lineRead[0]) {
+            firstLine.append(line);
+            lineRead[0] = true;
+          }
         }
-      } finally {
-        reader.close();
-      }
+      });
+      return firstLine.toString();
     } catch (Exception e) {
       //ignore
       return "";
     }
   }
 
+  /**
+   * Same as {@link #getVersionDescription} for several versions, one describe command is executed per clearcase.batch.size versions.
+   */
+  @NotNull
+  public List<String> getVersionDescriptions(final List<String> fullPaths) {
+    final List<String> result = new ArrayList<String>();
+    for (int start = 0; start < fullPaths.size(); start += BATCH_SIZE) {
+      final List<String> chunk = fullPaths.subList(start, Math.min(fullPaths.size(), start + BATCH_SIZE));
+      List<String> records = null;
+      try {
+        //comments can be changed (chevent) and lshistory does not report it, they are never cached
+        records = describeEach(chunk, DESCRIPTION_FORMAT, new String[]{"-pname"}, false);
+      } catch (Exception e) {
+        LOG.debug(e);
+      }
+      if (records == null) {
+        for (String fullPath : chunk) {
+          result.add(getVersionDescription(fullPath));
+        }
+      } else {
+        for (String record : records) {
+          final int lineEnd = record.indexOf('\n');
+          result.add(lineEnd == -1 ? record : record.substring(0, lineEnd));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Executes describe with the format ending with {@link #LINE_END_DELIMITER} for all the paths at once and splits the output per path.
+   * @param cacheable the format prints only what cannot change for a pinned version, the records are cached then
+   * @return output per path or null if the output cannot be matched to the paths
+   */
+  @Nullable
+  private List<String> describeEach(final List<String> paths, final String format, final String[] options, final boolean cacheable) throws IOException, VcsException {
+    final List<String> commandStart = new ArrayList<String>();
+    commandStart.add("describe");
+    commandStart.add("-fmt");
+    commandStart.add(format);
+    for (String option : options) {
+      commandStart.add(option);
+    }
+
+    //records of pinned versions are taken from the cache, only the rest is described
+    final String[] records = new String[paths.size()];
+    final String[] elements = new String[paths.size()];
+    final String[] cacheKeys = new String[paths.size()];
+    final List<Integer> toDescribe = new ArrayList<Integer>();
+    final List<String> params = new ArrayList<String>(commandStart);
+    for (int i = 0; i < paths.size(); i++) {
+      final String path = insertDotAfterVOB(paths.get(i));
+      elements[i] = cacheable ? getPinnedElement(paths.get(i)) : null;
+      if (elements[i] != null) {
+        final List<String> singleParams = new ArrayList<String>(commandStart);
+        singleParams.add(path);
+        cacheKeys[i] = createCacheKey(elements[i], singleParams.toArray(new String[singleParams.size()]), false);
+        final byte[] cached = ourCommandCache.get(elements[i], cacheKeys[i]);
+        if (cached != null) {
+          records[i] = new String(cached);
+          continue;
+        }
+      }
+      toDescribe.add(i);
+      params.add(path);
+    }
+    if (toDescribe.isEmpty()) {
+      return Arrays.asList(records);
+    }
+
+    final StringBuffer output = new StringBuffer();
+    executeAndProcessOutput(params.toArray(new String[params.size()]), new OutputLineProcessor() {
+      public void processLine(@NotNull final String line) {
+        output.append(line).append('\n');
+      }
+    });
+
+    final List<String> described = new ArrayList<String>();
+    int recordStart = 0;
+    int delimiter;
+    while ((delimiter = output.indexOf(LINE_END_DELIMITER, recordStart)) != -1) {
+      String record = output.substring(recordStart, delimiter);
+      if (record.startsWith("\n")) {
+        record = record.substring(1);
+      }
+      described.add(record);
+      recordStart = delimiter + LINE_END_DELIMITER.length();
+    }
+
+    if (described.size() != toDescribe.size()) {
+      LOG.info("ClearCase: unexpected describe output for " + toDescribe.size() + " elements, " + described.size() + " records found");
+      return null;
+    }
+    for (int j = 0; j < toDescribe.size(); j++) {
+      final int i = toDescribe.get(j);
+      records[i] = described.get(j);
+      if (cacheKeys[i] != null) {
+        ourCommandCache.put(elements[i], cacheKeys[i], records[i].getBytes());
+      }
+    }
+    return Arrays.asList(records);
+  }
+
+  /**
+   * Executes the query, its output is cached if the path pins a version (then the output can never change).
+   */
+  private InputStream executeQuery(final String[] params, final String path) throws IOException, VcsException {
+    final String element = getPinnedElement(path);
+    if (element == null) {
+      return executeAndReturnProcessInput(params);
+    }
+    //ls prints the paths as they are passed
+    final String key = createCacheKey(element, params, true);
+    final byte[] cached = ourCommandCache.get(element, key);
+    if (cached != null) {
+      LOG.debug("Cached result is used for " + key);
+      return new ByteArrayInputStream(cached);
+    }
+
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final InputStream input = executeAndReturnProcessInput(params);
+    try {
+      FileUtil.copy(input, output);
+    } finally {
+      input.close();
+    }
+    ourCommandCache.put(element, key, output.toByteArray());
+    return new ByteArrayInputStream(output.toByteArray());
+  }
+
+  /**
+   * Returns the element (its path without versions starting from the VOB) if the path pins one of its versions
+   * (...file@@/main/br/3), null otherwise.
+   */
+  @Nullable
+  private String getPinnedElement(@NotNull final String fullPath) throws VcsException {
+    if (!ourCommandCache.isEnabled()) return null;
+    final List<CCPathElement> filePath = CCPathElement.splitIntoPathElements(CCPathElement.normalizePath(fullPath));
+    if (filePath.isEmpty()) return null;
+    final String version = filePath.get(filePath.size() - 1).getVersion();
+    if (version == null) return null;
+    final String lastVersionPart = version.substring(version.lastIndexOf(File.separatorChar) + 1);
+    if (lastVersionPart.length() == 0) return null;
+    for (int i = 0; i < lastVersionPart.length(); i++) {
+      if (!Character.isDigit(lastVersionPart.charAt(i))) return null;
+    }
+    return getVobQualifiedPath(filePath);
+  }
+
+  @Nullable
+  private String getVobQualifiedPath(final List<CCPathElement> filePath) throws VcsException {
+    final int vobIndex = myParsedClearCaseViewPath.size();
+    if (filePath.size() < vobIndex + 1) return null;
+    final StringBuffer result = new StringBuffer();
+    for (int i = vobIndex; i < filePath.size(); i++) {
+      result.append('/').append(filePath.get(i).getPathElement());
+    }
+    return result.toString();
+  }
+
+  /**
+   * Paths in the arguments are taken relative to the view, so the views of a VOB share the results of the query.
+   * The VOB is identified by its tag, the tag must name the same VOB for all the views sharing the cache directory.
+   *
+   * @param outputHasPaths the output contains the paths as they are passed, the results are kept per view then
+   */
+  private String createCacheKey(final String element, final String[] params, final boolean outputHasPaths) {
+    //the first element of the path is the VOB
+    final int vobEnd = element.indexOf('/', 1);
+    final StringBuffer key = new StringBuffer(vobEnd == -1 ? element : element.substring(0, vobEnd));
+    final String viewPath = getClearCaseViewPath();
+    if (outputHasPaths) {
+      key.append('\n').append(viewPath);
+    }
+    for (String param : params) {
+      key.append('\n').append(param.startsWith(viewPath) ? param.substring(viewPath.length()) : param);
+    }
+    return key.toString();
+  }
+
+  /**
+   * Drops the cached query results about the element: its version was removed (rmver), so predecessors may have changed.
+   */
+  public void forgetCachedResults(final HistoryElement element) throws VcsException {
+    if (!ourCommandCache.isEnabled()) return;
+    final String vobQualifiedPath =
+      getVobQualifiedPath(CCPathElement.splitIntoPathElements(CCPathElement.normalizePath(element.getObjectName())));
+    if (vobQualifiedPath != null) {
+      ourCommandCache.invalidate(vobQualifiedPath);
+    }
+  }
+
   private InputStream executeAndReturnProcessInput(final String[] params) throws IOException, VcsException {
-    return myProcess.executeAndReturnProcessInput(params);
+    final String subcommand = getSubcommand(params);
+    return executeWithRestart(subcommand, 1, new InteractiveCommand<InputStream>() {
+      public InputStream execute() throws IOException {
+        return CommandMetrics.countOutput(myProcess.executeAndReturnProcessInput(params), getViewWholePath(), subcommand);
+      }
+    });
+  }
+
+  /**
+   * Streams the output of the interactive command to the processor; the processor must not run commands on this connection.
+   */
+  private void executeAndProcessOutput(final String[] params, final OutputLineProcessor processor) throws IOException, VcsException {
+    final String subcommand = getSubcommand(params);
+    executeWithRestart(subcommand, 1, new InteractiveCommand<Object>() {
+      public Object execute() throws IOException, VcsException {
+        myProcess.executeAndProcessOutput(params, CommandMetrics.countOutput(processor, getViewWholePath(), subcommand));
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Executes the command on the interactive process. If a command times out its process is killed, so it is replaced
+   * by a new one and the command is repeated (up to clearcase.command.retries times) if it only reads data and
+   * none of its output has been consumed yet. Each attempt waits for a slot of the VOB server in the scheduler,
+   * its latency adjusts the server limit and is recorded in {@link CommandMetrics} as commandCount commands
+   * of the given subcommand sharing the latency of the attempt.
+   */
+  private <T> T executeWithRestart(final String subcommand, final int commandCount, final InteractiveCommand<T> command) throws IOException, VcsException {
+    final String server = getServer();
+    int attempt = 0;
+    while (true) {
+      acquireSlot(server);
+      final long start = System.currentTimeMillis();
+      boolean failed = true;
+      boolean timedOut = false;
+      try {
+        final T result = command.execute();
+        failed = false;
+        return result;
+      } catch (CommandTimeoutException e) {
+        timedOut = true;
+        restartProcess();
+        if (attempt++ >= COMMAND_RETRIES || e.isOutputDelivered() || !RETRIABLE_COMMANDS.contains(e.getSubcommand())) {
+          throw e;
+        }
+        Loggers.VCS.warn("ClearCase: " + e.getLocalizedMessage() + ", executing it again");
+      } finally {
+        final long latency = (System.currentTimeMillis() - start) / Math.max(1, commandCount);
+        ourScheduler.commandCompleted(server, subcommand, latency, timedOut);
+        ourScheduler.release(server);
+        for (int i = 0; i < commandCount; i++) {
+          CommandMetrics.commandExecuted(getViewWholePath(), subcommand, latency, failed);
+        }
+      }
+    }
+  }
+
+  private interface InteractiveCommand<T> {
+    T execute() throws IOException, VcsException;
   }
 
   public String getObjectRelativePathWithVersions(final String path, final boolean isFile) throws VcsException {
@@ -511,13 +1401,19 @@ public class ClearCaseConnection {
                                              final boolean isFile)
     throws VcsException {
     final List<CCPathElement> pathElementList = CCPathElement.splitIntoPathAntVersions(path, getViewWholePath(), skipAtBeginCount);
+    PathVersionTrie.Node prefix = myResolvedPathVersions.getRoot(isFile);
     for (int i = 0; i < pathElementList.size() - skipAtEndCount; i++) {
       final CCPathElement pathElement = pathElementList.get(i);
       if (appentVersion) {
+        prefix = prefix.getChild(pathElement.getPathElement(), pathElement.getVersion());
         if (!pathElement.isIsFromViewPath() && pathElement.getVersion() == null) {
-          final Version lastVersion = getLastVersion(CCPathElement.createPath(pathElementList, i + 1, appentVersion), isFile);
-          if (lastVersion != null) {
-            pathElement.setVersion(lastVersion.getWholeName());
+          if (!prefix.isResolved()) {
+            final Version lastVersion = getLastVersion(CCPathElement.createPath(pathElementList, i + 1, appentVersion), isFile);
+            prefix.setVersion(lastVersion != null ? lastVersion.getWholeName() : null);
+          }
+          if (prefix.getVersion() != null) {
+            pathElement.setVersion(prefix.getVersion());
+            prefix = prefix.getChild(pathElement.getPathElement(), pathElement.getVersion());
           }
         }
       } else {
@@ -530,7 +1426,7 @@ public class ClearCaseConnection {
 
   public String getPathWithoutVersions(String path)
     throws VcsException {
-    return CCPathElement.createPathWithoutVersions(CCPathElement.splitIntoPathAntVersions(path, getViewWholePath(), 0));
+    return CCPath.parse(path).getPathWithoutVersions();
   }
   
   public void updateCurrentView() throws VcsException {
@@ -538,6 +1434,16 @@ public class ClearCaseConnection {
   }
 
   private boolean isViewIsDynamic() throws VcsException, IOException {
+    final String viewRoot = CCPathElement.normalizePath(getClearCaseViewPath());
+    final Boolean cachedDynamic = ourViewMetadataCache.isViewDynamic(viewRoot);
+    if (cachedDynamic != null) return cachedDynamic;
+
+    final boolean dynamic = readViewIsDynamic();
+    ourViewMetadataCache.putViewDynamic(viewRoot, dynamic);
+    return dynamic;
+  }
+
+  private boolean readViewIsDynamic() throws VcsException, IOException {
     final InputStream inputStream = executeSimpleProcess(getViewWholePath(), new String[] {"lsview", "-cview", "-long"});
     final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
 
@@ -571,7 +1477,7 @@ public class ClearCaseConnection {
       semaphore.acquire();
       executeSimpleProcess(viewPath, new String[]{"update", "-force", "-rename", "-log", UPDATE_LOG}).close();
     } catch (VcsException e) {
-      if (e.getLocalizedMessage().contains("is not a valid snapshot view path")) {
+      if (ClearCaseError.of(e) == ClearCaseError.NOT_A_SNAPSHOT_VIEW) {
         //ignore, it is dynamic view
         LOG.debug("Please ignore the error above if you use dynamic view.");
       } else {
@@ -592,26 +1498,16 @@ public class ClearCaseConnection {
   }
 
   public boolean isInsideView(final String objectName) {
-    return CCPathElement.isInsideView(objectName, getViewWholePath());
+    return CCPath.parse(objectName).isUnder(myParsedViewWholePath);
   }
 
   public String getRelativePath(final String path) {
-    final List<CCPathElement> ccViewRootElements = CCPathElement.splitIntoPathElements(getClearCaseViewPath());
-    final List<CCPathElement> viewPathElements = CCPathElement.splitIntoPathElements(getViewWholePath());
-    final List<CCPathElement> pathElements = CCPathElement.splitIntoPathElements(path);
+    final CCPath parsedPath = CCPath.parse(path);
 
-    if (pathElements.size() == 0 || ccViewRootElements.size() == 0) return ".";
+    if (parsedPath.size() == 0 || myParsedClearCaseViewPath.size() == 0) return ".";
 
-    if (!pathElements.get(0).getPathElement().equals(ccViewRootElements.get(0).getPathElement())) {
-      if ("".equals(pathElements.get(0).getPathElement())) {
-        pathElements.remove(0);
-      }
-      for (int i = ccViewRootElements.size() - 1; i >= 0; i--) {
-        pathElements.add(0, ccViewRootElements.get(i));
-      }
-    }
-
-    final String result = CCPathElement.createPath(pathElements, viewPathElements.size(), pathElements.size(), true);
+    final CCPath fullPath = parsedPath.resolveAgainst(myParsedClearCaseViewPath);
+    final String result = fullPath.createPath(myParsedViewWholePath.size(), fullPath.size(), true);
     return result.trim().length() == 0 ? "." : result;
   }
 
@@ -623,6 +1519,32 @@ public class ClearCaseConnection {
     return executeSimpleProcess(viewName, new String[]{"catcs"});
   }
 
+  /**
+   * Config spec of the view shared by the connections to it. It is not read again during clearcase.config.spec.check.interval
+   * seconds since the last check, then only its text is read and it is parsed again if the text has changed
+   * (or includes other files). The cached instance is shared between connections, so it is never changed
+   * after it is published: the view type is set on it before it is cached.
+   */
+  @NotNull
+  private static ConfigSpec getConfigSpec(@NotNull final ViewPath viewPath, final boolean viewIsDynamic) throws VcsException, IOException {
+    final String viewRoot = CCPathElement.normalizePath(viewPath.getClearCaseViewPath());
+    final ConfigSpec checkedConfigSpec = ourViewMetadataCache.getConfigSpec(viewRoot);
+    if (checkedConfigSpec != null) return checkedConfigSpec;
+
+    final String configSpecText = FileUtil.loadTextAndClose(new InputStreamReader(getConfigSpecInputStream(viewPath.getWholePath())));
+    final Long textHash = ConfigSpecParseUtil.hasIncludes(configSpecText) ? null : Hash.calc(configSpecText);
+    if (textHash != null) {
+      final ConfigSpec sameConfigSpec = ourViewMetadataCache.getConfigSpec(viewRoot, textHash);
+      if (sameConfigSpec != null) return sameConfigSpec;
+    }
+
+    final ConfigSpec configSpec = ConfigSpecParseUtil.getConfigSpecFromStream(viewPath.getClearCaseViewPathFile(),
+                                                                              new ByteArrayInputStream(configSpecText.getBytes()), null);
+    configSpec.setViewIsDynamic(viewIsDynamic);
+    ourViewMetadataCache.putConfigSpec(viewRoot, textHash, configSpec);
+    return configSpec;
+  }
+
   public void processAllVersions(final String version, final VersionProcessor versionProcessor, boolean processRoot, boolean useCache) throws VcsException {
     
     if (useCache && myCache != null) {
@@ -662,6 +1584,13 @@ public class ClearCaseConnection {
     throws VcsException {
     List<DirectoryChildElement> subfiles = CCParseUtil.readDirectoryVersionContent(this, dirPath);
 
+    final List<String> filePaths = new ArrayList<String>();
+    for (DirectoryChildElement subfile : subfiles) {
+      if (subfile.getStringVersion() != null && subfile.getType() == DirectoryChildElement.Type.FILE) {
+        filePaths.add(subfile.getPathWithoutVersion() + CCParseUtil.CC_VERSION_SEPARATOR);
+      }
+    }
+    final Iterator<ClearCaseFileAttr> fileAttrs = loadFileAttrs(filePaths).iterator();
 
     for (DirectoryChildElement subfile : subfiles) {
       if (subfile.getStringVersion() != null) {
@@ -669,7 +1598,7 @@ public class ClearCaseConnection {
         String newRelPath = "./".equals(relativePath) ? CCParseUtil.getFileName(subfile.getPath()) : relativePath + File.separator + CCParseUtil.getFileName(subfile.getPath());
         String elemPath = getViewWholePath() + File.separator + newRelPath;
         if (subfile.getType() == DirectoryChildElement.Type.FILE) {
-          final ClearCaseFileAttr fileAttr = loadFileAttr(subfile.getPathWithoutVersion() + CCParseUtil.CC_VERSION_SEPARATOR);
+          final ClearCaseFileAttr fileAttr = fileAttrs.next();
           versionProcessor.processFile(fileFullPath, newRelPath, elemPath, subfile.getStringVersion(), this, fileAttr.isIsText(), fileAttr.isIsExecutable());
         } else {
           versionProcessor.processDirectory(fileFullPath, newRelPath, elemPath, subfile.getStringVersion(), this);
@@ -687,6 +1616,21 @@ public class ClearCaseConnection {
 
   public Version prepare(final String lastVersion) throws VcsException {
     collectChangesToIgnore(lastVersion);
+    return getViewLastVersion();
+  }
+
+  /**
+   * Same as {@link #prepare} followed by {@link CCParseUtil#processChangedFiles} for the changes between the versions,
+   * the history is read only once.
+   */
+  public void prepareAndCollectChanges(final String fromVersion, final String lastVersion, final ChangedFilesProcessor processor)
+    throws VcsException, IOException {
+    final List<HistoryElement> changes = readHistory(fromVersion, lastVersion);
+    getViewLastVersion();
+    CCParseUtil.processChangedElements(this, changes, processor);
+  }
+
+  private Version getViewLastVersion() throws VcsException {
     final Version viewLastVersion = getLastVersion(getViewWholePath(), false);
     if (viewLastVersion == null) {
       throw new VcsException("Cannot get version in view '" + getViewWholePath() + "' for the directory " +
@@ -704,47 +1648,28 @@ public class ClearCaseConnection {
       } catch (IOException e) {
         //ignore
       }
-    } catch (IOException e) {
-      if (!e.getLocalizedMessage().contains("already on element")) throw e;
-      else {
-        try {
-          myProcess.destroy();
-        } catch (Throwable e1) {
-          //ignore
-        }
-        try {
-          final GeneralCommandLine generalCommandLine = new GeneralCommandLine();
-          generalCommandLine.setExePath("cleartool");
-          generalCommandLine.addParameter("-status");
-          generalCommandLine.setWorkDirectory(getViewWholePath());
-          myProcess = ourProcessExecutor.createProcess(generalCommandLine);
-        } catch (ExecutionException e1) {
-          throw new VcsException(e1.getLocalizedMessage(), e1);
-        }
-      }
-    } catch (VcsException e) {
-      if (!e.getLocalizedMessage().contains("already on element")) throw e;
-      else {
-        try {
-          myProcess.destroy();
-        } catch (Throwable e1) {
-          //ignore
-        }
-        try {
-          final GeneralCommandLine generalCommandLine = new GeneralCommandLine();
-          generalCommandLine.setExePath("cleartool");
-          generalCommandLine.addParameter("-status");
-          generalCommandLine.setWorkDirectory(getViewWholePath());
-          myProcess = ourProcessExecutor.createProcess(generalCommandLine);
-        } catch (ExecutionException e1) {
-          throw new VcsException(e1.getLocalizedMessage(), e1);
-        }
-        
-      }
+    } catch (CommandFailedException e) {
+      //the whole output of the failed command is read, so the process is still usable
+      if (e.getError() != ClearCaseError.ALREADY_ON_ELEMENT) throw e;
+    } finally {
+      //labels are listed in the version tree
+      ourVersionTreeCache.invalidate(getPathWithoutVersions(pname));
     }
   }
 
   public ClearCaseFileAttr loadFileAttr(final String path) throws VcsException {
+    final String attributeKey = getAttributeCacheKeys(Collections.singletonList(path))[0];
+    final ClearCaseFileAttr cachedAttr = attributeKey == null ? null : ourAttributeCache.get(attributeKey);
+    if (cachedAttr != null) return cachedAttr;
+
+    final ClearCaseFileAttr attr = describeFileAttr(path);
+    if (attributeKey != null) {
+      ourAttributeCache.put(attributeKey, attr);
+    }
+    return attr;
+  }
+
+  private ClearCaseFileAttr describeFileAttr(final String path) throws VcsException {
     try {
       final InputStream input = executeAndReturnProcessInput(new String[]{"describe", insertDotAfterVOB(cutOffVersion(path))});
       try {
@@ -761,6 +1686,106 @@ public class ClearCaseConnection {
     }
   }
 
+  /**
+   * Same as {@link #loadFileAttr} for several elements, one describe command is executed per clearcase.batch.size elements.
+   */
+  @NotNull
+  public List<ClearCaseFileAttr> loadFileAttrs(final List<String> paths) throws VcsException {
+    final ClearCaseFileAttr[] result = new ClearCaseFileAttr[paths.size()];
+    final String[] attributeKeys = getAttributeCacheKeys(paths);
+    //only the elements whose attributes are not cached are described
+    final List<Integer> toLoad = new ArrayList<Integer>();
+    for (int i = 0; i < paths.size(); i++) {
+      result[i] = attributeKeys[i] == null ? null : ourAttributeCache.get(attributeKeys[i]);
+      if (result[i] == null) {
+        toLoad.add(i);
+      }
+    }
+
+    for (int start = 0; start < toLoad.size(); start += BATCH_SIZE) {
+      final List<Integer> chunk = toLoad.subList(start, Math.min(toLoad.size(), start + BATCH_SIZE));
+      final List<String> chunkPaths = new ArrayList<String>(chunk.size());
+      for (int index : chunk) {
+        chunkPaths.add(paths.get(index));
+      }
+      final List<ClearCaseFileAttr> attrs = chunk.size() > 1 ? loadFileAttrsAtOnce(chunkPaths) : null;
+      for (int i = 0; i < chunk.size(); i++) {
+        final int index = chunk.get(i);
+        result[index] = attrs == null ? describeFileAttr(paths.get(index)) : attrs.get(i);
+        if (attributeKeys[index] != null) {
+          ourAttributeCache.put(attributeKeys[index], result[index]);
+        }
+      }
+    }
+    return Arrays.asList(result);
+  }
+
+  /**
+   * Attributes are cached per element, the key is the element OID: it does not change when the element is moved or renamed
+   * and another element created at the same path gets another one. OIDs are described once per clearcase.batch.size elements.
+   * @return key per path, null for the paths whose OID cannot be read
+   */
+  @NotNull
+  private String[] getAttributeCacheKeys(final List<String> paths) {
+    final String[] result = new String[paths.size()];
+    if (!ourAttributeCache.isEnabled()) return result;
+    for (int start = 0; start < paths.size(); start += BATCH_SIZE) {
+      final List<String> elementPaths = new ArrayList<String>();
+      for (String path : paths.subList(start, Math.min(paths.size(), start + BATCH_SIZE))) {
+        elementPaths.add(cutOffVersion(path));
+      }
+      List<String> records = null;
+      try {
+        records = describeEach(elementPaths, OID_FORMAT, new String[0], false);
+      } catch (Exception e) {
+        LOG.debug(e);
+      }
+      if (records == null) continue;
+      for (int i = 0; i < records.size(); i++) {
+        final String oid = records.get(i).trim();
+        result[start + i] = oid.length() == 0 ? null : oid;
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  private List<ClearCaseFileAttr> loadFileAttrsAtOnce(final List<String> paths) throws VcsException {
+    final String[] params = new String[paths.size() + 1];
+    params[0] = "describe";
+    for (int i = 0; i < paths.size(); i++) {
+      params[i + 1] = insertDotAfterVOB(cutOffVersion(paths.get(i)));
+    }
+
+    //description of every element starts with a not indented line
+    final List<List<String>> descriptions = new ArrayList<List<String>>();
+    try {
+      executeAndProcessOutput(params, new OutputLineProcessor() {
+        public void processLine(@NotNull final String line) {
+          if (line.length() == 0) return;
+          if (!Character.isWhitespace(line.charAt(0)) || descriptions.isEmpty()) {
+            descriptions.add(new ArrayList<String>());
+          }
+          descriptions.get(descriptions.size() - 1).add(line);
+        }
+      });
+    } catch (IOException e) {
+      LOG.debug(e);
+      return null;
+    }
+
+    if (descriptions.size() != paths.size()) {
+      LOG.info("ClearCase: unexpected describe output for " + paths.size() + " elements, " + descriptions.size() + " descriptions found");
+      return null;
+    }
+
+    final List<ClearCaseFileAttr> result = new ArrayList<ClearCaseFileAttr>();
+    for (List<String> description : descriptions) {
+      result.add(ClearCaseFileAttr.readFrom(description));
+    }
+    return result;
+  }
+
   private String cutOffVersion(final String path) {
     final int versionSep = path.lastIndexOf(CCParseUtil.CC_VERSION_SEPARATOR);
     if (versionSep != -1) {
@@ -800,7 +1825,16 @@ public class ClearCaseConnection {
   @NotNull
   public static String getClearCaseViewRoot(@NotNull final String viewPath) throws VcsException, IOException {
     final String normalPath = CCPathElement.normalizePath(viewPath);
+    final String cachedViewRoot = ourViewMetadataCache.getViewRoot(normalPath);
+    if (cachedViewRoot != null) return cachedViewRoot;
 
+    final String viewRoot = readClearCaseViewRoot(normalPath);
+    ourViewMetadataCache.putViewRoot(normalPath, viewRoot);
+    return viewRoot;
+  }
+
+  @NotNull
+  private static String readClearCaseViewRoot(@NotNull final String normalPath) throws VcsException, IOException {
     final InputStream inputStream = executeSimpleProcess(normalPath, new String[] {"pwv", "-root"});
     final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
 
@@ -829,35 +1863,38 @@ public class ClearCaseConnection {
 
   @NotNull
   private String insertDotAfterVOB(@NotNull final String fullPath) throws VcsException {
-    final List<CCPathElement> filePath = CCPathElement.splitIntoPathElements(CCPathElement.normalizePath(fullPath));
-    final List<CCPathElement> ccViewPath = CCPathElement.splitIntoPathElements(myViewPath.getClearCaseViewPath());
-
-    if (filePath.size() < ccViewPath.size() + 1) return fullPath;
-
-    final CCPathElement vobElement = filePath.get(ccViewPath.size());
-
-    if (vobElement.getVersion() == null) return fullPath;
+    final CCPath filePath = CCPath.parse(CCPathElement.normalizePath(fullPath));
+    final int vobIndex = myParsedClearCaseViewPath.size();
 
-    final CCPathElement dotElement = new CCPathElement(".", false);
+    if (filePath.size() < vobIndex + 1) return fullPath;
 
-    dotElement.setVersion(vobElement.getVersion());
-    vobElement.setVersion(null);
+    if (filePath.getVersion(vobIndex) == null) return fullPath;
 
-    filePath.add(ccViewPath.size() + 1, dotElement);
-
-    return CCPathElement.createPath(filePath, filePath.size(), true);
+    return filePath.moveVersionToDotElement(vobIndex);
   }
 
   public String getPreviousVersion(final HistoryElement element) throws VcsException, IOException {
-    String path = element.getObjectName().trim();
-    if (path.endsWith(CCParseUtil.CC_VERSION_SEPARATOR)) {
-      path = path + element.getObjectVersion();
-    }
-    else {
-      path = path + CCParseUtil.CC_VERSION_SEPARATOR + element.getObjectVersion();
-    }
+    final String cachedPreviousVersion = getCachedPreviousVersion(element);
+    if (cachedPreviousVersion != null) return cachedPreviousVersion;
+    return describePrevious(Collections.singletonList(element)).get(0);
+  }
 
-    final InputStream inputStream = executeSimpleProcess(getViewWholePath(), new String[] {"describe", "-s", "-pre", insertDotAfterVOB(path)});
+  /**
+   * @return predecessor of the version taken from the cached version tree of the element (deleted versions are not
+   * added to it), null if the tree is not cached or does not know the version
+   */
+  @Nullable
+  private String getCachedPreviousVersion(final HistoryElement element) throws VcsException {
+    final VersionTree versionTree = createCachedVersionTree(element.getObjectName());
+    if (versionTree == null) return null;
+    final Version version = versionTree.findVersionByPath(normalizeVersion(element.getObjectVersion()));
+    if (version == null) return null;
+    final Version previousVersion = version.getPrevVersionOrParent();
+    return previousVersion == null ? null : previousVersion.getWholeName();
+  }
+
+  private String describePreviousVersion(final HistoryElement element) throws VcsException, IOException {
+    final InputStream inputStream = executeSimpleProcess(getViewWholePath(), new String[] {"describe", "-s", "-pre", insertDotAfterVOB(getVersionPath(element))});
     final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
 
     try {
@@ -868,16 +1905,72 @@ public class ClearCaseConnection {
     }
   }
 
+  /**
+   * Same as {@link #getPreviousVersion} for several elements. Predecessors not found in the cached version trees are described,
+   * one describe command is executed per clearcase.batch.size elements.
+   */
+  @NotNull
+  public List<String> describePrevious(final List<HistoryElement> elements) throws VcsException, IOException {
+    final String[] result = new String[elements.size()];
+    final List<Integer> toDescribe = new ArrayList<Integer>();
+    for (int i = 0; i < elements.size(); i++) {
+      result[i] = getCachedPreviousVersion(elements.get(i));
+      if (result[i] == null) {
+        toDescribe.add(i);
+      }
+    }
+
+    for (int start = 0; start < toDescribe.size(); start += BATCH_SIZE) {
+      final List<Integer> chunk = toDescribe.subList(start, Math.min(toDescribe.size(), start + BATCH_SIZE));
+      final List<String> paths = new ArrayList<String>();
+      for (int index : chunk) {
+        paths.add(getVersionPath(elements.get(index)));
+      }
+
+      List<String> records = null;
+      try {
+        records = describeEach(paths, PREVIOUS_VERSION_FORMAT, new String[0], true);
+      } catch (IOException e) {
+        LOG.debug(e);
+      }
+      for (int i = 0; i < chunk.size(); i++) {
+        final int index = chunk.get(i);
+        result[index] = records == null ? describePreviousVersion(elements.get(index)) : records.get(i).trim();
+      }
+    }
+    return Arrays.asList(result);
+  }
+
+  private static String getVersionPath(final HistoryElement element) {
+    final String path = element.getObjectName().trim();
+    if (path.endsWith(CCParseUtil.CC_VERSION_SEPARATOR)) {
+      return path + element.getObjectVersion();
+    }
+    else {
+      return path + CCParseUtil.CC_VERSION_SEPARATOR + element.getObjectVersion();
+    }
+  }
+
   public static class ClearCaseInteractiveProcess extends InteractiveProcess {
     private final Process myProcess;
+    //whether the outputs of the written commands (several commands are outstanding when pipelined) are traced
+    private final LinkedList<Boolean> myTracedOutputs = new LinkedList<Boolean>();
 
     public ClearCaseInteractiveProcess(final Process process) {
       super(process.getInputStream(), process.getOutputStream());
       myProcess = process;
     }
 
-    protected void execute(final String[] args) throws IOException {
-      super.execute(args);
+    protected void writeCommand(final String[] args) throws IOException {
+      super.writeCommand(args);
+      final boolean traced = isTraced();
+      if (TRACE_OUTPUT) {
+        synchronized (myTracedOutputs) {
+          myTracedOutputs.addLast(traced);
+        }
+      }
+      if (!traced && !LOG.isDebugEnabled()) return;
+
       final StringBuffer commandLine = new StringBuffer();
       commandLine.append("cleartool");    
       for (String arg : args) {
@@ -889,19 +1982,25 @@ public class ClearCaseConnection {
         }
 
       }
-      if (LOG_COMMANDS) {
+      if (traced) {
         Loggers.VCS.info("ClearCase executing " + commandLine.toString());
         ourLogger.log("\n" + commandLine.toString());
       }
-      LOG.info("interactive execute: " + commandLine.toString());
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("interactive execute: " + commandLine.toString());
+      }
     }
 
     protected boolean isEndOfCommandOutput(final String line, final String[] params) throws IOException {
       final Matcher matcher = END_OF_COMMAND_PATTERN.matcher(line);
       if (matcher.matches()) {
+        if (TRACE_OUTPUT) {
+          synchronized (myTracedOutputs) {
+            myTracedOutputs.poll();
+          }
+        }
         if (!"0".equals(matcher.group(2))) {
-          String error = readError();
-          throw new IOException("Error executing " + StringUtil.join(params, " ") + ": " + error);
+          throw new CommandFailedException(params, readError());
         }
         return true;
       }
@@ -911,10 +2010,19 @@ public class ClearCaseConnection {
 
     protected void lineRead(final String line) {
       super.lineRead(line);
-      if (LOG_COMMANDS) {
+      if (isOutputTraced()) {
         ourLogger.log("\n" + line);
-      }          
-      LOG.info("output line read: " + line);
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("output line read: " + line);
+      }
+    }
+
+    private boolean isOutputTraced() {
+      if (!TRACE_OUTPUT) return false;
+      synchronized (myTracedOutputs) {
+        return Boolean.TRUE.equals(myTracedOutputs.peek());
+      }
     }
 
     protected InputStream getErrorStream() {
@@ -20,6 +20,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ClearCaseFileAttr {
   private final boolean myIsExecutable;
@@ -44,10 +46,18 @@ public class ClearCaseFileAttr {
 
   public static ClearCaseFileAttr readFrom(final InputStream input) throws IOException {
     final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+    final List<String> lines = new ArrayList<String>();
     String line;
+    while ((line  = reader.readLine() ) != null) {
+      lines.add(line);
+    }
+    return readFrom(lines);
+  }
+
+  public static ClearCaseFileAttr readFrom(final List<String> describeOutput) {
     String fileType = null;
     boolean executable = false;
-    while ((line  = reader.readLine() ) != null) {
+    for (String line : describeOutput) {
       if (line.startsWith(ELEMENT_TYPE)) {
         fileType = line.substring(ELEMENT_TYPE.length());
       }
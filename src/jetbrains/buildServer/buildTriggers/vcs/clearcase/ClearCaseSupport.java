@@ -22,11 +22,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import jetbrains.buildServer.Used;
 import jetbrains.buildServer.buildTriggers.vcs.AbstractVcsPropertiesProcessor;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.cache.CommandResultCache;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.cache.ElementAttributeCache;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecLoadRule;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseError;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.CommandScheduler;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.structure.ClearCaseStructureCache;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.*;
@@ -61,6 +64,11 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   public ClearCaseSupport(File baseDir) {
     if (baseDir != null) {
       myCache = new ClearCaseStructureCache(baseDir, this);
+      if (USE_CC_CACHE) {
+        ClearCaseConnection.setCommandCacheDir(new File(baseDir, CommandResultCache.DIR_NAME));
+        ClearCaseConnection.setAttributeCacheDir(new File(baseDir, ElementAttributeCache.DIR_NAME));
+        ClearCaseConnection.setHistoryJournalDir(new File(baseDir, HistoryJournal.DIR_NAME));
+      }
     }
     else {
       myCache = null;
@@ -68,6 +76,12 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   }
 
   public ClearCaseSupport(SBuildServer server, ServerPaths serverPaths, EventDispatcher<BuildServerListener> dispatcher) {
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        ClearCaseConnection.disposeProcessPool();
+      }
+    });
     File cachesRootDir = new File(new File(serverPaths.getCachesDir()), "clearCase");
     if (!cachesRootDir.exists() && !cachesRootDir.mkdirs()) {
       myCache = null;
@@ -76,6 +90,9 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     myCache = new ClearCaseStructureCache(cachesRootDir, this);
     if (USE_CC_CACHE) {
       myCache.register(server, dispatcher);
+      ClearCaseConnection.setCommandCacheDir(new File(cachesRootDir, CommandResultCache.DIR_NAME));
+      ClearCaseConnection.setAttributeCacheDir(new File(cachesRootDir, ElementAttributeCache.DIR_NAME));
+      ClearCaseConnection.setHistoryJournalDir(new File(cachesRootDir, HistoryJournal.DIR_NAME));
     }
   }
 
@@ -150,17 +167,18 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     }
   }
 
-  private ChangedFilesProcessor createCollectingChangesFileProcessor(final MultiMap<CCModificationKey, VcsChange> key2changes,
+  private ChangedFilesProcessor createCollectingChangesFileProcessor(final List<PendingChange> pendingChanges,
                                                                      final ClearCaseConnection connection) {
     return new ChangedFilesProcessor() {
 
 
       public void processChangedDirectory(final HistoryElement element) throws IOException, VcsException {
         LOG.debug("Processing changed directory " + element.getLogRepresentation());
-        CCParseUtil.processChangedDirectory(element, connection, createChangedStructureProcessor(element, key2changes, connection));
+        CCParseUtil.processChangedDirectory(element, connection, createChangedStructureProcessor(element, pendingChanges, connection));
       }
 
       public void processDestroyedFileVersion(final HistoryElement element) throws VcsException {        
+        connection.forgetCachedResults(element);
       }
 
       public void processChangedFile(final HistoryElement element) throws VcsException, IOException {
@@ -170,9 +188,10 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
           String pathWithoutVersion = connection.getParentRelativePathWithVersions(element.getObjectName(), true);
 
           final String versionAfterChange = pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR + element.getObjectVersion();
-          final String versionBeforeChange = pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR + element.getPreviousVersion(connection);
+          //previous version is appended later, previous versions of all changed files are requested at once
+          final String versionBeforeChange = pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR;
 
-          addChange(element, element.getObjectName(), connection, VcsChangeInfo.Type.CHANGED, versionBeforeChange, versionAfterChange, key2changes);
+          addChange(element, element.getObjectName(), connection, VcsChangeInfo.Type.CHANGED, versionBeforeChange, versionAfterChange, true, pendingChanges);
 
           LOG.debug("Change was detected: changed file " + element.getLogRepresentation());
         }
@@ -182,33 +201,33 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   }
 
   private ChangedStructureProcessor createChangedStructureProcessor(final HistoryElement element,
-                                                                    final MultiMap<CCModificationKey, VcsChange> key2changes,
+                                                                    final List<PendingChange> pendingChanges,
                                                                     final ClearCaseConnection connection) {
     return new ChangedStructureProcessor() {
       public void fileAdded(DirectoryChildElement child) throws VcsException, IOException {
         if (connection.versionIsInsideView(child.getPathWithoutVersion(), child.getStringVersion(), true)) {
-          addChange(element, child.getFullPath(), connection, VcsChangeInfo.Type.ADDED, null, getVersion(child, connection), key2changes);
+          addChange(element, child.getFullPath(), connection, VcsChangeInfo.Type.ADDED, null, getVersion(child, connection), pendingChanges);
           LOG.debug("Change was detected: added file \"" + child.getFullPath() + "\"");
         }
       }
 
       public void fileDeleted(DirectoryChildElement child) throws VcsException, IOException {
         if (connection.versionIsInsideView(child.getPathWithoutVersion(), child.getStringVersion(), true)) {
-          addChange(element, child.getFullPath(), connection, VcsChangeInfo.Type.REMOVED, getVersion(child, connection), null, key2changes);
+          addChange(element, child.getFullPath(), connection, VcsChangeInfo.Type.REMOVED, getVersion(child, connection), null, pendingChanges);
           LOG.debug("Change was detected: deleted file \"" + child.getFullPath() + "\"");
         }
       }
 
       public void directoryDeleted(DirectoryChildElement child) throws VcsException, IOException {
         if (connection.versionIsInsideView(child.getPathWithoutVersion(), child.getStringVersion(), false)) {
-          addChange(element, child.getFullPath(), connection, VcsChangeInfo.Type.DIRECTORY_REMOVED, getVersion(child, connection), null, key2changes);
+          addChange(element, child.getFullPath(), connection, VcsChangeInfo.Type.DIRECTORY_REMOVED, getVersion(child, connection), null, pendingChanges);
           LOG.debug("Change was detected: deleted directory \"" + child.getFullPath() + "\"");
         }
       }
 
       public void directoryAdded(DirectoryChildElement child) throws VcsException, IOException {
         if (connection.versionIsInsideView(child.getPathWithoutVersion(), child.getStringVersion(), false)) {
-          addChange(element, child.getFullPath(), connection, VcsChangeInfo.Type.DIRECTORY_ADDED, null, getVersion(child, connection), key2changes);
+          addChange(element, child.getFullPath(), connection, VcsChangeInfo.Type.DIRECTORY_ADDED, null, getVersion(child, connection), pendingChanges);
           LOG.debug("Change was detected: added directory \"" + child.getFullPath() + "\"");
         }
       }
@@ -225,12 +244,76 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
                          final VcsChangeInfo.Type type,
                          final String beforeVersion,
                          final String afterVersion,
-                         final MultiMap<CCModificationKey, VcsChange> key2changes) throws VcsException {
-    final CCModificationKey modificationKey = new CCModificationKey(element.getDate(), element.getUser());
-    key2changes.putValue(modificationKey, createChange(type, connection, beforeVersion, afterVersion, childFullPath));
-    CCModificationKey realKey = findKey(modificationKey, key2changes);
-    if (realKey != null) {
-      realKey.getCommentHolder().update(element.getActivity(), element.getComment(), connection.getVersionDescription(childFullPath));
+                         final List<PendingChange> pendingChanges) throws VcsException {
+    addChange(element, childFullPath, connection, type, beforeVersion, afterVersion, false, pendingChanges);
+  }
+
+  private void addChange(final HistoryElement element,
+                         final String childFullPath,
+                         final ClearCaseConnection connection,
+                         final VcsChangeInfo.Type type,
+                         final String beforeVersion,
+                         final String afterVersion,
+                         final boolean appendPreviousVersion,
+                         final List<PendingChange> pendingChanges) throws VcsException {
+    final String relativePath = connection.getObjectRelativePathWithoutVersions(childFullPath, isFile(type));
+    pendingChanges.add(new PendingChange(element, childFullPath, type, relativePath, beforeVersion, afterVersion, appendPreviousVersion));
+  }
+
+  /**
+   * Resolves previous versions and version descriptions of the collected changes in batches and adds the changes in the order they were collected.
+   */
+  private void addPendingChanges(final List<PendingChange> pendingChanges,
+                                 final ClearCaseConnection connection,
+                                 final MultiMap<CCModificationKey, VcsChange> key2changes) throws VcsException, IOException, ParseException {
+    final List<HistoryElement> changedFiles = new ArrayList<HistoryElement>();
+    final List<String> childFullPaths = new ArrayList<String>();
+    for (PendingChange change : pendingChanges) {
+      if (change.myAppendPreviousVersion) {
+        changedFiles.add(change.myElement);
+      }
+      childFullPaths.add(change.myChildFullPath);
+    }
+
+    final Iterator<String> previousVersions = connection.describePrevious(changedFiles).iterator();
+    final Iterator<String> descriptions = connection.getVersionDescriptions(childFullPaths).iterator();
+
+    for (PendingChange change : pendingChanges) {
+      final String beforeVersion = change.myAppendPreviousVersion ? change.myBeforeVersion + previousVersions.next() : change.myBeforeVersion;
+      final String description = descriptions.next();
+      final HistoryElement element = change.myElement;
+      final CCModificationKey modificationKey = new CCModificationKey(element.getDate(), element.getDateMillis(), element.getUser());
+      key2changes.putValue(modificationKey, new VcsChange(change.myType, change.myRelativePath, change.myRelativePath, beforeVersion, change.myAfterVersion));
+      CCModificationKey realKey = findKey(modificationKey, key2changes);
+      if (realKey != null) {
+        realKey.getCommentHolder().update(element.getActivity(), element.getComment(), description);
+      }
+    }
+  }
+
+  private static class PendingChange {
+    private final HistoryElement myElement;
+    private final String myChildFullPath;
+    private final VcsChangeInfo.Type myType;
+    private final String myRelativePath;
+    private final String myBeforeVersion;
+    private final String myAfterVersion;
+    private final boolean myAppendPreviousVersion;
+
+    private PendingChange(final HistoryElement element,
+                          final String childFullPath,
+                          final VcsChangeInfo.Type type,
+                          final String relativePath,
+                          final String beforeVersion,
+                          final String afterVersion,
+                          final boolean appendPreviousVersion) {
+      myElement = element;
+      myChildFullPath = childFullPath;
+      myType = type;
+      myRelativePath = relativePath;
+      myBeforeVersion = beforeVersion;
+      myAfterVersion = afterVersion;
+      myAppendPreviousVersion = appendPreviousVersion;
     }
   }
 
@@ -242,15 +325,6 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     return null;
   }
 
-  private VcsChange createChange(final VcsChangeInfo.Type type,
-                                 ClearCaseConnection connection,
-                                 final String beforeVersion,
-                                 final String afterVersion,
-                                 final String childFullPath) throws VcsException {
-    String relativePath = connection.getObjectRelativePathWithoutVersions(childFullPath, isFile(type));
-    return new VcsChange(type, relativePath, relativePath, beforeVersion, afterVersion);
-  }
-
   private boolean isFile(final VcsChangeInfo.Type type) {
     switch (type) {
       case ADDED:
@@ -343,19 +417,25 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
 
   @NotNull
   public byte[] getContent(@NotNull final String filePath, @NotNull final VcsRoot versionedRoot, @NotNull final String version) throws VcsException {
-    final String preparedPath = CCPathElement.normalizeSeparators(filePath);
-    final ClearCaseConnection connection = createConnection(versionedRoot, IncludeRule.createDefaultInstance(), null);
+    //a user is waiting for the content (e.g. in the diff viewer)
+    final CommandScheduler.Priority previousPriority = CommandScheduler.setCurrentPriority(CommandScheduler.Priority.INTERACTIVE);
     try {
-      connection.collectChangesToIgnore(version);
-      String path = new File(connection.getViewWholePath()).getParent() + File.separator +
-                    connection.getObjectRelativePathWithVersions(connection.getViewWholePath() + File.separator + preparedPath, true);
-      return getFileContent(connection, path);
-    } finally {
+      final String preparedPath = CCPathElement.normalizeSeparators(filePath);
+      final ClearCaseConnection connection = createConnection(versionedRoot, IncludeRule.createDefaultInstance(), null);
       try {
-        connection.dispose();
-      } catch (IOException e) {
-        //ignore
+        connection.collectChangesToIgnore(version);
+        String path = new File(connection.getViewWholePath()).getParent() + File.separator +
+                      connection.getObjectRelativePathWithVersions(connection.getViewWholePath() + File.separator + preparedPath, true);
+        return getFileContent(connection, path);
+      } finally {
+        try {
+          connection.dispose();
+        } catch (IOException e) {
+          //ignore
+        }
       }
+    } finally {
+      CommandScheduler.setCurrentPriority(previousPriority);
     }
   }
 
@@ -455,7 +535,7 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
 
   @NotNull
   public Comparator<String> getVersionComparator() {
-    return new VcsSupportUtil.DateVersionComparator(CCParseUtil.getDateFormat());
+    return CCParseUtil.createVersionComparator();
   }
 
   public boolean isAgentSideCheckoutAvailable() {
@@ -472,15 +552,20 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   }
 
   public String testConnection(@NotNull VcsRoot vcsRoot) throws VcsException {
-    final ClearCaseConnection caseConnection = createConnection(vcsRoot, IncludeRule.createDefaultInstance(), null);
+    final CommandScheduler.Priority previousPriority = CommandScheduler.setCurrentPriority(CommandScheduler.Priority.INTERACTIVE);
     try {
+      final ClearCaseConnection caseConnection = createConnection(vcsRoot, IncludeRule.createDefaultInstance(), null);
       try {
-        return caseConnection.testConnection();
-      } finally {
-        caseConnection.dispose();
+        try {
+          return caseConnection.testConnection();
+        } finally {
+          caseConnection.dispose();
+        }
+      } catch (IOException e) {
+        throw new VcsException(e);
       }
-    } catch (IOException e) {
-      throw new VcsException(e);
+    } finally {
+      CommandScheduler.setCurrentPriority(previousPriority);
     }
   }
 
@@ -582,28 +667,24 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
 
   private List<ModificationData> collectChangesWithConnection(VcsRoot root, String fromVersion, String currentVersion, ClearCaseConnection connection) throws VcsException {
     try {
-      try {
-        LOG.debug("Collecting changes to ignore...");
-        connection.collectChangesToIgnore(currentVersion);
-      } catch (Exception e) {
-        throw new VcsException(e);
-      }
-
       final ArrayList<ModificationData> list = new ArrayList<ModificationData>();
       final MultiMap<CCModificationKey, VcsChange> key2changes = new MultiMap<CCModificationKey, VcsChange>();
 
-      final ChangedFilesProcessor fileProcessor = createCollectingChangesFileProcessor(key2changes, connection);
+      final List<PendingChange> pendingChanges = new ArrayList<PendingChange>();
+      final ChangedFilesProcessor fileProcessor = createCollectingChangesFileProcessor(pendingChanges, connection);
 
 
       try {
 
         LOG.debug("Collecting changes...");
 
-        CCParseUtil.processChangedFiles(connection, fromVersion, currentVersion, fileProcessor);
+        //changes to ignore and changes to collect are read with one lshistory
+        connection.collectChanges(fromVersion, currentVersion, fileProcessor);
+        addPendingChanges(pendingChanges, connection, key2changes);
 
         for (CCModificationKey key : key2changes.keySet()) {
           final List<VcsChange> changes = key2changes.get(key);
-          final Date date = new SimpleDateFormat(CCParseUtil.OUTPUT_DATE_FORMAT).parse(key.getDate());
+          final Date date = new Date(key.getDateMillis());
           final String version = CCParseUtil.formatDate(new Date(date.getTime() + 1000));
           list.add(new ModificationData(date, changes, key.getCommentHolder().toString(), key.getUser(), root, version, version));
         }
@@ -631,6 +712,16 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   }
 
   public String label(@NotNull final String label, @NotNull final String version, @NotNull final VcsRoot root, @NotNull final CheckoutRules checkoutRules) throws VcsException {
+    //labeling walks the whole tree, it must not delay other requests
+    final CommandScheduler.Priority previousPriority = CommandScheduler.setCurrentPriority(CommandScheduler.Priority.BACKGROUND);
+    try {
+      return doLabel(label, version, root, checkoutRules);
+    } finally {
+      CommandScheduler.setCurrentPriority(previousPriority);
+    }
+  }
+
+  private String doLabel(final String label, final String version, final VcsRoot root, final CheckoutRules checkoutRules) throws VcsException {
     createLabel(label, root);
     for (IncludeRule includeRule : checkoutRules.getRootIncludeRules()) {
       final ClearCaseConnection connection = createConnection(root, includeRule, null);
@@ -697,7 +788,7 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
         //ignore
       }
     } catch (VcsException e) {
-      if (!e.getLocalizedMessage().contains("already exists")) {
+      if (ClearCaseError.of(e) != ClearCaseError.ALREADY_EXISTS) {
         throw e;
       }
     }
@@ -18,6 +18,7 @@ package jetbrains.buildServer.buildTriggers.vcs.clearcase;
 
 import jetbrains.buildServer.vcs.VcsException;
 import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
 
 
 public class DirectoryChildElement {
@@ -48,19 +49,34 @@ public class DirectoryChildElement {
   private final String myPathWithoutVersion;
 
   public static DirectoryChildElement readFromLSFormat(String line, ClearCaseConnection connection) throws VcsException {
-    final Type type;
+    final Type type = readTypeFromLSFormat(line);
+    if (type != null) {
+      return connection.getLastVersionElement(readPathFromLSFormat(line), type);      
+    }
+    return null;
+  }
+
+  @Nullable
+  public static Type readTypeFromLSFormat(String line) {
+    if (line.startsWith(DIRECTORY_ELEMENT)) {
+      return Type.DIRECTORY;
+    }
+    else if (line.startsWith(FILE_ELEMENT)){
+      return Type.FILE;
+    }
+    else {
+      return null;
+    }
+  }
+
+  public static String readPathFromLSFormat(String line) {
     String currentPath = line;
     if (currentPath.startsWith(DIRECTORY_ELEMENT)) {
       currentPath = currentPath.substring(DIRECTORY_ELEMENT.length()).trim();
-      type = Type.DIRECTORY;
     }
     else if (currentPath.startsWith(FILE_ELEMENT)){
-      type = Type.FILE;
       currentPath = currentPath.substring(FILE_ELEMENT.length()).trim();
     }
-    else {
-      type = null;
-    }
           
     if (currentPath.endsWith(NOT_LOADED)) {
       currentPath = currentPath.substring(0, currentPath.length() - NOT_LOADED.length()).trim();
@@ -69,11 +85,7 @@ public class DirectoryChildElement {
     if (currentPath.endsWith(CCParseUtil.CC_VERSION_SEPARATOR)) {
       currentPath = currentPath.substring(0, currentPath.length() - CCParseUtil.CC_VERSION_SEPARATOR.length()).trim();
     }
-    
-    if (type != null) {
-      return connection.getLastVersionElement(currentPath, type);      
-    }
-    return null;
+    return currentPath;
   }
 
 
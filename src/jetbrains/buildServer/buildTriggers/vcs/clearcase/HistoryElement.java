@@ -18,21 +18,29 @@ package jetbrains.buildServer.buildTriggers.vcs.clearcase;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.text.ParseException;
 import jetbrains.buildServer.vcs.VcsException;
 import org.jetbrains.annotations.Nullable;
 
 public class HistoryElement {
-  
-  private final String myUser;
-  private final String myDate;
-  private final String myObjectName;
-  private final String myObjectKind;
-  private final String myObjectVersion;
-  private final String myOperation;
-  private final String myEvent;
-  private final String myComment;
-  private final String myActivity;
-  private static final int EXPECTED_CHANGE_FIELD_COUNT = 9;
+  private static final int USER = 0;
+  private static final int DATE = 1;
+  private static final int OBJECT_NAME = 2;
+  private static final int OBJECT_KIND = 3;
+  private static final int OBJECT_VERSION = 4;
+  private static final int OPERATION = 5;
+  private static final int EVENT = 6;
+  private static final int COMMENT = 7;
+  private static final int ACTIVITY = 8;
+  static final int EXPECTED_CHANGE_FIELD_COUNT = 9;
+
+  private final String[] myFields;
+  //lshistory record and the bounds of its fields, the fields are decoded on the first access
+  private final byte[] myRecord;
+  private final int[] myFieldBounds;
+  private long myDateMillis;
+  private boolean myDateParsed = false;
 
 
   public HistoryElement(
@@ -46,15 +54,25 @@ public class HistoryElement {
                         final String comment,
                         final String activity
                         ) {
-    myUser = user;
-    myDate = date;
-    myObjectName = objectName;
-    myObjectKind = objectKind;
-    myObjectVersion = objectVersion;
-    myOperation = operation;
-    myEvent = event;
-    myComment = comment;
-    myActivity = activity;
+    myFields = new String[]{user, date, objectName, objectKind, objectVersion, operation, event, comment, activity};
+    myRecord = null;
+    myFieldBounds = null;
+  }
+
+  private HistoryElement(final byte[] record, final int[] fieldBounds) {
+    myFields = new String[EXPECTED_CHANGE_FIELD_COUNT];
+    myRecord = record;
+    myFieldBounds = fieldBounds;
+  }
+
+  private String getField(final int index) {
+    String field = myFields[index];
+    if (field == null && myRecord != null) {
+      final int start = myFieldBounds[2 * index];
+      field = new String(myRecord, start, myFieldBounds[2 * index + 1] - start);
+      myFields[index] = field;
+    }
+    return field;
   }
 
   private static HistoryElement createHistoryElement(final String user,
@@ -66,16 +84,25 @@ public class HistoryElement {
                                               final String event,
                                               final String comment,
                                               final String activity) {
-    String kind = objectKind, version = objectVersion;
-    if ("rmver".equals(operation) && "destroy version on branch".equals(event)) {
-      final String extractedVersion = extractVersion(comment);
+    return applyDestroyedVersion(new HistoryElement(user, date, objectName, objectKind, objectVersion, operation, event, comment, activity));
+  }
+
+  /**
+   * @param fieldBounds start and end of every field in the record
+   */
+  static HistoryElement createHistoryElement(final byte[] record, final int[] fieldBounds) {
+    return applyDestroyedVersion(new HistoryElement(record, fieldBounds));
+  }
+
+  private static HistoryElement applyDestroyedVersion(final HistoryElement element) {
+    if ("rmver".equals(element.getOperation()) && "destroy version on branch".equals(element.getEvent())) {
+      final String extractedVersion = extractVersion(element.getComment());
       if (extractedVersion != null) {
-        kind = "version";
-        version = extractedVersion;
+        element.myFields[OBJECT_KIND] = "version";
+        element.myFields[OBJECT_VERSION] = extractedVersion;
       }
     }
-    return new HistoryElement(user, date, objectName, kind, version, operation, event, comment, activity);
-
+    return element;
   }
 
   @Nullable
@@ -88,21 +115,18 @@ public class HistoryElement {
   }
 
   public static HistoryElement readFrom(final String line) {
-    final String[] strings = line.split(ClearCaseConnection.DELIMITER, EXPECTED_CHANGE_FIELD_COUNT);
-    if (strings.length < EXPECTED_CHANGE_FIELD_COUNT - 1) {
-      return null;
+    final String[] strings = new String[EXPECTED_CHANGE_FIELD_COUNT];
+    int fieldCount = 0;
+    int fieldStart = 0;
+    int delimiter;
+    while (fieldCount < EXPECTED_CHANGE_FIELD_COUNT - 1 && (delimiter = line.indexOf(ClearCaseConnection.DELIMITER, fieldStart)) != -1) {
+      strings[fieldCount++] = line.substring(fieldStart, delimiter);
+      fieldStart = delimiter + ClearCaseConnection.DELIMITER.length();
     }
-    else if (strings.length == EXPECTED_CHANGE_FIELD_COUNT - 1) {
-      return createHistoryElement(strings[0],
-                                  strings[1],
-                                  strings[2],
-                                  strings[3],
-                                  strings[4],
-                                  strings[5],
-                                  strings[6],
-                                  strings[7],
-                                  ""
-                                  );
+    strings[fieldCount++] = line.substring(fieldStart);
+
+    if (fieldCount < EXPECTED_CHANGE_FIELD_COUNT - 1) {
+      return null;
     }
     else {
       return createHistoryElement(strings[0],
@@ -113,46 +137,73 @@ public class HistoryElement {
                                   strings[5],
                                   strings[6],
                                   strings[7],
-                                  strings[8]
+                                  fieldCount == EXPECTED_CHANGE_FIELD_COUNT - 1 ? "" : strings[8]
                                   );
     }
   }
 
+  /**
+   * @return the lshistory record the element was read from
+   */
+  byte[] getRecord() {
+    return myRecord;
+  }
+
+  /**
+   * Writes the record the element was read from as printed by lshistory.
+   */
+  void writeRecord(final OutputStream output) throws IOException {
+    output.write(myRecord);
+    output.write(ClearCaseConnection.LINE_END_DELIMITER.getBytes());
+    output.write('\n');
+  }
+
   public String getDate() {
-    return myDate;
+    return getField(DATE);
+  }
+
+  /**
+   * @return the date of the event in milliseconds, parsed on the first call
+   */
+  public long getDateMillis() throws ParseException {
+    if (!myDateParsed) {
+      myDateMillis = CCParseUtil.parseOutputDate(getDate());
+      myDateParsed = true;
+    }
+    return myDateMillis;
   }
 
   public String getObjectName() {
-    return myObjectName;
+    return getField(OBJECT_NAME);
   }
 
   public String getObjectKind() {
-    return myObjectKind;
+    return getField(OBJECT_KIND);
   }
 
   public String getObjectVersion() {
-    return myObjectVersion;
+    return getField(OBJECT_VERSION);
   }
 
   public String getOperation() {
-    return myOperation;
+    return getField(OPERATION);
   }
 
   public String getEvent() {
-    return myEvent;
+    return getField(EVENT);
   }
 
   public String getComment() {
-    return myComment;
+    return getField(COMMENT);
   }
   
 
   public String getUser() {
-    return myUser;
+    return getField(USER);
   }
 
   public int getObjectVersionInt() {
-    return CCParseUtil.getVersionInt(myObjectVersion);
+    return CCParseUtil.getVersionInt(getObjectVersion());
   }
 
   public String getPreviousVersion(final ClearCaseConnection connection) throws VcsException, IOException {
@@ -160,11 +211,11 @@ public class HistoryElement {
   }
 
   public boolean versionIsInsideView(final ClearCaseConnection connection, final boolean isFile) throws IOException, VcsException {
-    return connection.versionIsInsideView(myObjectName, getObjectVersion(), isFile);
+    return connection.versionIsInsideView(getObjectName(), getObjectVersion(), isFile);
   }
 
   public String getActivity() {
-    return myActivity;
+    return getField(ACTIVITY);
   }
 
   public String getLogRepresentation() {
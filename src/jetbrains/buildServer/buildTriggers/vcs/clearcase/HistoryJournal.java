@@ -0,0 +1,442 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import com.intellij.openapi.util.io.FileUtil;
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+import jetbrains.buildServer.vcs.VcsException;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Append-only journal of the lshistory output for one queried view path, kept on disk so that cleartool is asked only
+ * for the events since the watermark.
+ * <p/>
+ * The journal consists of segments, every segment holds the new records of one fetch as printed by lshistory
+ * (newest first) and the range of their dates, so requests read only the segments which may contain their events.
+ * The journal covers all the events since the date it was started with, a request for an earlier date extends it
+ * backwards. The next fetch starts at the watermark: the newest journaled event date minus the overlap, or the local time
+ * of the last fetch minus the overlap and the allowed clock skew if that is later (nothing has happened meanwhile).
+ * Event dates and -since are interpreted by the VOB server, so the local time is never trusted beyond the skew.
+ */
+public class HistoryJournal {
+  private static final Logger LOG = Logger.getLogger(HistoryJournal.class);
+
+  @NonNls public static final String DIR_NAME = "history";
+  @NonNls private static final String INDEX_FILE_NAME = "index";
+  @NonNls private static final String SEGMENT_FILE_PREFIX = "segment";
+  @NonNls private static final String SPOOL_FILE_PREFIX = "fetch";
+  @NonNls private static final String RECORD_CHARSET = "ISO-8859-1";
+  private static final int FILE_VERSION = 3;
+
+  interface Fetcher {
+    @NotNull
+    InputStream fetch(@NotNull String since) throws IOException, VcsException;
+  }
+
+  private final File myDir;
+  private final String myQueryPath;
+  private final long myOverlap;
+  private final long myClockSkew;
+  private final long myRetention;
+  private final int myMaxSegments;
+
+  private boolean myLoaded = false;
+  private long myCoveredSince = -1;
+  private long myWatermark = -1;
+  private int myNextSegment = 0;
+  //oldest first
+  private final List<Segment> mySegments = new ArrayList<Segment>();
+
+  /**
+   * @param overlap   the watermark is this interval before the newest event, events which became visible late are not lost
+   * @param clockSkew allowed difference between the local clock and the clock of the VOB server
+   * @param retention segments older than this interval before the watermark are dropped when the journal is compacted
+   */
+  HistoryJournal(@NotNull final File dir,
+                 @NotNull final String queryPath,
+                 final long overlap,
+                 final long clockSkew,
+                 final long retention,
+                 final int maxSegments) {
+    myDir = dir;
+    myQueryPath = queryPath;
+    myOverlap = overlap;
+    myClockSkew = clockSkew;
+    myRetention = retention;
+    myMaxSegments = maxSegments;
+  }
+
+  /**
+   * Fetches the events since the watermark (or since the date if the journal does not cover it yet) and returns
+   * the journaled lshistory output which contains all the events since the date. The output may contain older events
+   * too, the caller skips them.
+   * <p/>
+   * cleartool output is only copied to a spool file while the journal is not locked, concurrent requests
+   * for the same path do not wait for each other's cleartool. The new records are filtered and published under the lock.
+   */
+  @NotNull
+  InputStream getChanges(final long since, @NotNull final Fetcher fetcher) throws IOException, VcsException {
+    final long fetchSince;
+    final File spoolFile;
+    synchronized (this) {
+      load();
+      if (myCoveredSince < 0 || since < myCoveredSince) {
+        //one fetch both extends the journal backwards and brings its tail up to date
+        LOG.debug("Extending history journal of " + myQueryPath + " since " + CCParseUtil.formatDate(new Date(since)));
+        fetchSince = since;
+      } else {
+        fetchSince = Math.max(myCoveredSince, myWatermark);
+      }
+      spoolFile = new File(myDir, SPOOL_FILE_PREFIX + myNextSegment++);
+    }
+
+    final long fetchTime = System.currentTimeMillis();
+    spool(fetcher.fetch(CCParseUtil.formatDate(new Date(fetchSince))), spoolFile);
+
+    synchronized (this) {
+      try {
+        publish(spoolFile, fetchSince);
+      } finally {
+        FileUtil.delete(spoolFile);
+      }
+      myCoveredSince = myCoveredSince < 0 ? fetchSince : Math.min(myCoveredSince, fetchSince);
+      //advances even if nothing has happened, the next fetch does not ask for the same interval again
+      myWatermark = Math.max(myWatermark, Math.max(getNewestEventDate(), fetchTime - myClockSkew) - myOverlap);
+      if (mySegments.size() > myMaxSegments) {
+        compact();
+      }
+      saveIndex();
+      return open(since);
+    }
+  }
+
+  private long getNewestEventDate() {
+    long result = Long.MIN_VALUE + myOverlap;
+    for (Segment segment : mySegments) {
+      result = Math.max(result, segment.myMaxDate);
+    }
+    return result;
+  }
+
+  private static void spool(final InputStream input, final File spoolFile) throws IOException {
+    try {
+      final OutputStream output = new BufferedOutputStream(new FileOutputStream(spoolFile));
+      try {
+        FileUtil.copy(input, output);
+      } finally {
+        output.close();
+      }
+    } catch (IOException e) {
+      FileUtil.delete(spoolFile);
+      throw e;
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Adds the spooled records which are not journaled yet. The records older than the journal go to a new oldest segment,
+   * the rest to a new newest one, so the segments read newest first keep the lshistory order.
+   */
+  private void publish(final File spoolFile, final long fetchSince) throws IOException {
+    final Set<String> journaledRecords = readRecordsSince(fetchSince);
+    final SegmentWriter older = new SegmentWriter();
+    final SegmentWriter newer = new SegmentWriter();
+    final HistoryRecordReader reader = new HistoryRecordReader(new BufferedInputStream(new FileInputStream(spoolFile)));
+    try {
+      HistoryElement element;
+      while ((element = reader.readNext()) != null) {
+        if (journaledRecords.contains(getRecordKey(element))) continue;
+        final long date;
+        try {
+          date = element.getDateMillis();
+        } catch (ParseException e) {
+          LOG.debug("Skipping history record with unparseable date " + element.getDate());
+          continue;
+        }
+        (myCoveredSince >= 0 && date < myCoveredSince ? older : newer).write(element, date);
+      }
+      older.close();
+      newer.close();
+    } catch (IOException e) {
+      older.abort();
+      newer.abort();
+      throw e;
+    } finally {
+      reader.close();
+    }
+
+    if (older.getCount() > 0) {
+      mySegments.add(0, older.getSegment());
+    }
+    if (newer.getCount() > 0) {
+      mySegments.add(newer.getSegment());
+    }
+    if (older.getCount() + newer.getCount() > 0) {
+      LOG.debug("Journaled " + (older.getCount() + newer.getCount()) + " history records of " + myQueryPath);
+    }
+  }
+
+  /**
+   * @return records of the events since the date which are already in the journal
+   */
+  private Set<String> readRecordsSince(final long date) throws IOException {
+    final Set<String> result = new HashSet<String>();
+    for (Segment segment : mySegments) {
+      if (segment.myMaxDate < date) continue;
+      final HistoryRecordReader reader = new HistoryRecordReader(new FileInputStream(segment.getFile()));
+      try {
+        HistoryElement element;
+        while ((element = reader.readNext()) != null) {
+          try {
+            if (element.getDateMillis() >= date) {
+              result.add(getRecordKey(element));
+            }
+          } catch (ParseException e) {
+            //not journaled
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    return result;
+  }
+
+  private static String getRecordKey(final HistoryElement element) throws UnsupportedEncodingException {
+    return new String(element.getRecord(), RECORD_CHARSET);
+  }
+
+  /**
+   * Drops the segments out of the retention interval and merges the rest into one segment.
+   */
+  private void compact() throws IOException {
+    final long retainSince = myWatermark - myRetention;
+    final List<Segment> retained = new ArrayList<Segment>();
+    for (Segment segment : mySegments) {
+      if (segment.myMaxDate < retainSince) {
+        //all the later events are in the later segments
+        myCoveredSince = Math.max(myCoveredSince, segment.myMaxDate + 1000);
+      } else {
+        retained.add(segment);
+      }
+    }
+
+    if (!retained.isEmpty()) {
+      final File file = new File(myDir, SEGMENT_FILE_PREFIX + myNextSegment++);
+      long minDate = Long.MAX_VALUE;
+      long maxDate = Long.MIN_VALUE;
+      try {
+        final OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+          for (int i = retained.size() - 1; i >= 0; i--) {
+            final Segment segment = retained.get(i);
+            final InputStream input = new FileInputStream(segment.getFile());
+            try {
+              FileUtil.copy(input, output);
+            } finally {
+              input.close();
+            }
+            minDate = Math.min(minDate, segment.myMinDate);
+            maxDate = Math.max(maxDate, segment.myMaxDate);
+          }
+        } finally {
+          output.close();
+        }
+      } catch (IOException e) {
+        FileUtil.delete(file);
+        throw e;
+      }
+      retained.clear();
+      retained.add(new Segment(file.getName(), minDate, maxDate));
+    }
+
+    final List<Segment> obsolete = new ArrayList<Segment>(mySegments);
+    mySegments.clear();
+    mySegments.addAll(retained);
+    for (Segment segment : obsolete) {
+      //a segment being read by another request may remain, it is removed when the journal is loaded
+      FileUtil.delete(segment.getFile());
+    }
+  }
+
+  /**
+   * Opens the segments which may contain events since the date, newest first. The files are opened at once,
+   * a compaction by a concurrent request does not affect the returned stream.
+   */
+  private InputStream open(final long since) throws IOException {
+    final Vector<InputStream> inputs = new Vector<InputStream>();
+    try {
+      for (int i = mySegments.size() - 1; i >= 0; i--) {
+        final Segment segment = mySegments.get(i);
+        if (segment.myMaxDate >= since) {
+          inputs.add(new BufferedInputStream(new FileInputStream(segment.getFile())));
+        }
+      }
+    } catch (IOException e) {
+      for (InputStream input : inputs) {
+        input.close();
+      }
+      throw e;
+    }
+    return new SequenceInputStream(inputs.elements());
+  }
+
+  private void load() {
+    if (myLoaded) return;
+    myLoaded = true;
+    final File indexFile = new File(myDir, INDEX_FILE_NAME);
+    if (indexFile.isFile()) {
+      try {
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+          if (input.readInt() == FILE_VERSION && myQueryPath.equals(input.readUTF())) {
+            myCoveredSince = input.readLong();
+            myWatermark = input.readLong();
+            myNextSegment = input.readInt();
+            final int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+              mySegments.add(new Segment(input.readUTF(), input.readLong(), input.readLong()));
+            }
+          }
+        } finally {
+          input.close();
+        }
+      } catch (IOException e) {
+        LOG.debug("Cannot read history journal index " + indexFile, e);
+        resetState();
+      }
+    }
+    deleteUnusedFiles();
+  }
+
+  private void resetState() {
+    myCoveredSince = -1;
+    myWatermark = -1;
+    mySegments.clear();
+  }
+
+  private void deleteUnusedFiles() {
+    final Set<String> used = new HashSet<String>();
+    used.add(INDEX_FILE_NAME);
+    for (Segment segment : mySegments) {
+      used.add(segment.myFileName);
+    }
+    final File[] files = myDir.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      if (!used.contains(file.getName())) {
+        FileUtil.delete(file);
+      }
+    }
+  }
+
+  private void saveIndex() throws IOException {
+    final File indexFile = new File(myDir, INDEX_FILE_NAME);
+    final File tempFile = new File(myDir, INDEX_FILE_NAME + ".tmp");
+    final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      output.writeInt(FILE_VERSION);
+      output.writeUTF(myQueryPath);
+      output.writeLong(myCoveredSince);
+      output.writeLong(myWatermark);
+      output.writeInt(myNextSegment);
+      output.writeInt(mySegments.size());
+      for (Segment segment : mySegments) {
+        output.writeUTF(segment.myFileName);
+        output.writeLong(segment.myMinDate);
+        output.writeLong(segment.myMaxDate);
+      }
+    } finally {
+      output.close();
+    }
+    if (!tempFile.renameTo(indexFile)) {
+      FileUtil.delete(indexFile);
+      if (!tempFile.renameTo(indexFile)) {
+        FileUtil.delete(tempFile);
+        throw new IOException("Cannot write history journal index " + indexFile);
+      }
+    }
+  }
+
+  /**
+   * Writes the records of a new segment, the file is created with the first record.
+   */
+  private class SegmentWriter {
+    private File myFile;
+    private OutputStream myOutput;
+    private long myMinDate = Long.MAX_VALUE;
+    private long myMaxDate = Long.MIN_VALUE;
+    private int myCount = 0;
+
+    private void write(final HistoryElement element, final long date) throws IOException {
+      if (myOutput == null) {
+        myFile = new File(myDir, SEGMENT_FILE_PREFIX + myNextSegment++);
+        myOutput = new BufferedOutputStream(new FileOutputStream(myFile));
+      }
+      element.writeRecord(myOutput);
+      myMinDate = Math.min(myMinDate, date);
+      myMaxDate = Math.max(myMaxDate, date);
+      myCount++;
+    }
+
+    private void close() throws IOException {
+      if (myOutput != null) {
+        myOutput.close();
+      }
+    }
+
+    private void abort() {
+      try {
+        close();
+      } catch (IOException e) {
+        //the file is deleted anyway
+      }
+      if (myFile != null) {
+        FileUtil.delete(myFile);
+      }
+    }
+
+    private int getCount() {
+      return myCount;
+    }
+
+    private Segment getSegment() {
+      return new Segment(myFile.getName(), myMinDate, myMaxDate);
+    }
+  }
+
+  private class Segment {
+    private final String myFileName;
+    private final long myMinDate;
+    private final long myMaxDate;
+
+    private Segment(final String fileName, final long minDate, final long maxDate) {
+      myFileName = fileName;
+      myMinDate = minDate;
+      myMaxDate = maxDate;
+    }
+
+    private File getFile() {
+      return new File(myDir, myFileName);
+    }
+  }
+}
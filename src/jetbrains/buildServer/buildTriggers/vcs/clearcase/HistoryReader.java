@@ -0,0 +1,34 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.IOException;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * History events in the order of lshistory output (newest first).
+ */
+interface HistoryReader {
+  /**
+   * @return the next history element or null if there are no more elements
+   */
+  @Nullable
+  HistoryElement readNext() throws IOException, VcsException;
+
+  void close() throws IOException;
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reads the records of lshistory output printed with {@link ClearCaseConnection#FORMAT} directly from bytes.
+ * <p/>
+ * A record ends with a line ending with {@link ClearCaseConnection#LINE_END_DELIMITER} (or with the output), line breaks
+ * inside records (multi-line comments) are normalized to '\n'. The record buffer is reused, every element gets
+ * a copy of its record and decodes its fields only when they are accessed.
+ */
+class HistoryRecordReader implements HistoryReader {
+  private static final byte[] LINE_END_DELIMITER = ClearCaseConnection.LINE_END_DELIMITER.getBytes();
+  private static final byte[] FIELD_DELIMITER = ClearCaseConnection.DELIMITER.getBytes();
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream myInput;
+  private final byte[] myReadBuffer = new byte[READ_BUFFER_SIZE];
+  private int myReadPos = 0;
+  private int myReadLimit = 0;
+  private boolean myLastWasCR = false;
+
+  private byte[] myRecord = new byte[1024];
+  private int myRecordLength;
+
+  HistoryRecordReader(@NotNull final InputStream input) {
+    myInput = input;
+  }
+
+  /**
+   * @return the next history element or null at the end of the output, records with too few fields are skipped
+   */
+  @Nullable
+  public HistoryElement readNext() throws IOException {
+    while (readRecord()) {
+      final HistoryElement element = parseRecord();
+      if (element != null) return element;
+    }
+    return null;
+  }
+
+  public void close() throws IOException {
+    myInput.close();
+  }
+
+  /**
+   * Same records as joining the lines returned by BufferedReader.readLine until a line ends with the delimiter.
+   */
+  private boolean readRecord() throws IOException {
+    myRecordLength = 0;
+    boolean lineStarted = false;
+    boolean joinPending = false;
+    int b;
+    while ((b = read()) != -1) {
+      if (b == '\r' || b == '\n') {
+        if (b == '\n' && myLastWasCR) {
+          //the second half of \r\n
+          myLastWasCR = false;
+          continue;
+        }
+        myLastWasCR = b == '\r';
+        if (joinPending) {
+          append('\n');
+        }
+        if (endsWithLineEndDelimiter()) {
+          myRecordLength -= LINE_END_DELIMITER.length;
+          return true;
+        }
+        lineStarted = true;
+        joinPending = true;
+        continue;
+      }
+      myLastWasCR = false;
+      if (joinPending) {
+        append('\n');
+        joinPending = false;
+      }
+      lineStarted = true;
+      append(b);
+    }
+
+    if (!lineStarted) return false;
+    if (endsWithLineEndDelimiter()) {
+      myRecordLength -= LINE_END_DELIMITER.length;
+    }
+    return true;
+  }
+
+  private int read() throws IOException {
+    if (myReadPos == myReadLimit) {
+      myReadLimit = myInput.read(myReadBuffer);
+      myReadPos = 0;
+      if (myReadLimit <= 0) {
+        myReadLimit = 0;
+        return -1;
+      }
+    }
+    return myReadBuffer[myReadPos++] & 0xFF;
+  }
+
+  private void append(final int b) {
+    if (myRecordLength == myRecord.length) {
+      final byte[] record = new byte[myRecord.length * 2];
+      System.arraycopy(myRecord, 0, record, 0, myRecordLength);
+      myRecord = record;
+    }
+    myRecord[myRecordLength++] = (byte)b;
+  }
+
+  private boolean endsWithLineEndDelimiter() {
+    return matches(myRecord, myRecordLength - LINE_END_DELIMITER.length, LINE_END_DELIMITER);
+  }
+
+  private static boolean matches(final byte[] bytes, final int offset, final byte[] pattern) {
+    if (offset < 0) return false;
+    for (int i = 0; i < pattern.length; i++) {
+      if (bytes[offset + i] != pattern[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Splits the record like String.split(DELIMITER, 9): the last field takes the rest of the record.
+   */
+  @Nullable
+  private HistoryElement parseRecord() {
+    final int[] bounds = new int[2 * HistoryElement.EXPECTED_CHANGE_FIELD_COUNT];
+    int fieldCount = 0;
+    int fieldStart = 0;
+    int pos = 0;
+    while (fieldCount < HistoryElement.EXPECTED_CHANGE_FIELD_COUNT - 1 && pos <= myRecordLength - FIELD_DELIMITER.length) {
+      if (matches(myRecord, pos, FIELD_DELIMITER)) {
+        bounds[2 * fieldCount] = fieldStart;
+        bounds[2 * fieldCount + 1] = pos;
+        fieldCount++;
+        pos += FIELD_DELIMITER.length;
+        fieldStart = pos;
+      } else {
+        pos++;
+      }
+    }
+    bounds[2 * fieldCount] = fieldStart;
+    bounds[2 * fieldCount + 1] = myRecordLength;
+    fieldCount++;
+
+    if (fieldCount < HistoryElement.EXPECTED_CHANGE_FIELD_COUNT - 1) return null;
+    if (fieldCount == HistoryElement.EXPECTED_CHANGE_FIELD_COUNT - 1) {
+      //no activity
+      bounds[2 * fieldCount] = myRecordLength;
+      bounds[2 * fieldCount + 1] = myRecordLength;
+    }
+
+    final byte[] record = new byte[myRecordLength];
+    System.arraycopy(myRecord, 0, record, 0, myRecordLength);
+    return HistoryElement.createHistoryElement(record, bounds);
+  }
+}
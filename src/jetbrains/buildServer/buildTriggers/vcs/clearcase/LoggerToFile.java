@@ -17,43 +17,232 @@
 package jetbrains.buildServer.buildTriggers.vcs.clearcase;
 
 import com.intellij.openapi.util.io.FileUtil;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import org.jetbrains.annotations.NotNull;
 
+/**
+ * Asynchronous trace log. {@link #log(String)} only puts the message into a lock-free ring buffer
+ * (the message is dropped if the buffer is full), a daemon thread drains the buffer and writes the messages
+ * in batches through a buffered stream which is flushed every clearcase.log.flush.interval milliseconds.
+ * <p/>
+ * When the file grows above the limit it is rotated: file is renamed to file.1, file.1 to file.2 and so on,
+ * at most clearcase.log.backups old files are kept.
+ */
 public class LoggerToFile {
+  private static final int BUFFER_CAPACITY = roundUpToPowerOfTwo(readIntFromSystem("clearcase.log.buffer.size", 8192));
+  private static final int FLUSH_INTERVAL_MILLIS = Math.max(1, readIntFromSystem("clearcase.log.flush.interval", 1000));
+  private static final int BACKUPS = Math.max(0, readIntFromSystem("clearcase.log.backups", 3));
+  private static final long PUBLISH_WAIT_NANOS = 1000L * 1000;
+
   private final File myFile;
   private final long myMaxFileLength;
 
-  private FileOutputStream myStream;
+  private final AtomicReferenceArray<String> myBuffer = new AtomicReferenceArray<String>(BUFFER_CAPACITY);
+  private final AtomicLong myHead = new AtomicLong();
+  private final AtomicLong myTail = new AtomicLong();
+  private final AtomicLong myDropped = new AtomicLong();
+
+  private volatile boolean myFlushRequested = false;
+  private volatile boolean myCloseRequested = false;
+  private Thread myWriter;
+
+  //accessed by the writer thread only
+  private OutputStream myStream;
+  private long myFileLength;
+  //time of the first message written after the last flush, 0 if everything is flushed
+  private long myUnflushedSince;
 
   public LoggerToFile(final File file, final long maxFileLength) {
     myFile = file;
     myMaxFileLength = maxFileLength;
   }
 
-  public synchronized void log(String s) {
+  private static int readIntFromSystem(final String prop, final int def) {
+    try {
+      return Integer.parseInt(System.getProperty(prop));
+    } catch (Throwable e) {
+      return def;
+    }
+  }
+
+  private static int roundUpToPowerOfTwo(final int size) {
+    int result = 16;
+    while (result < size && result < (1 << 24)) {
+      result <<= 1;
+    }
+    return result;
+  }
+
+  public void log(@NotNull String s) {
+    long tail;
+    do {
+      tail = myTail.get();
+      if (tail - myHead.get() >= BUFFER_CAPACITY) {
+        myDropped.incrementAndGet();
+        return;
+      }
+    } while (!myTail.compareAndSet(tail, tail + 1));
+    myBuffer.set(index(tail), s);
+    ensureWriterStarted();
+    //the writer sleeps only when the buffer is empty, it has to be woken up by the first message only
+    if (myHead.get() == tail) {
+      wakeUpWriter();
+    }
+  }
+
+  /**
+   * Asks the writer to flush the written messages, does not wait for it.
+   */
+  public void flush() {
+    myFlushRequested = true;
+    wakeUpWriter();
+  }
+
+  /**
+   * Asks the writer to write all the buffered messages and close the file, does not wait for it.
+   * The file is reopened by the next message.
+   */
+  public void close() {
+    myCloseRequested = true;
+    wakeUpWriter();
+  }
+
+  public long getDroppedCount() {
+    return myDropped.get();
+  }
+
+  private int index(final long sequence) {
+    return (int)(sequence & (BUFFER_CAPACITY - 1));
+  }
+
+  private synchronized void ensureWriterStarted() {
+    if (myWriter != null) return;
+    myWriter = new Thread(new Runnable() {
+      public void run() {
+        writeMessages();
+      }
+    }, "ClearCase trace log writer");
+    myWriter.setDaemon(true);
+    myWriter.start();
+  }
+
+  private synchronized void wakeUpWriter() {
+    if (myWriter != null) {
+      LockSupport.unpark(myWriter);
+    }
+  }
+
+  /**
+   * Writes the messages and sleeps while there are none: until the flush interval passes if some messages
+   * are not flushed yet, until it is woken up otherwise.
+   */
+  private void writeMessages() {
+    //noinspection InfiniteLoopStatement
+    while (true) {
+      drain();
+      final long now = System.currentTimeMillis();
+      if (myStream != null && (myFlushRequested || myCloseRequested || myUnflushedSince > 0 && now - myUnflushedSince >= FLUSH_INTERVAL_MILLIS)) {
+        myFlushRequested = false;
+        myUnflushedSince = 0;
+        flushStream();
+      }
+      if (myCloseRequested && myHead.get() == myTail.get()) {
+        myCloseRequested = false;
+        closeStream();
+      }
+
+      final long head = myHead.get();
+      if (head != myTail.get()) {
+        if (myBuffer.get(index(head)) == null) {
+          //the slot is claimed, the message will be published in a moment
+          LockSupport.parkNanos(PUBLISH_WAIT_NANOS);
+        }
+      } else if (myUnflushedSince > 0) {
+        LockSupport.parkNanos(1000L * 1000 * Math.max(1, FLUSH_INTERVAL_MILLIS - (now - myUnflushedSince)));
+      } else {
+        LockSupport.park(this);
+      }
+    }
+  }
+
+  private void drain() {
+    long head = myHead.get();
+    while (head != myTail.get()) {
+      final int index = index(head);
+      final String message = myBuffer.get(index);
+      if (message == null) {
+        //the slot is claimed but the message is not published yet
+        break;
+      }
+      myBuffer.set(index, null);
+      myHead.set(++head);
+      write(message);
+    }
+    final long dropped = myDropped.getAndSet(0);
+    if (dropped > 0) {
+      write("\n[" + dropped + " messages dropped, trace log buffer is full]");
+    }
+  }
+
+  private void write(final String message) {
     try {
       ensureStreamExist();
-      myStream.write(s.getBytes());
+      final byte[] bytes = message.getBytes();
+      myStream.write(bytes);
+      myFileLength += bytes.length;
+      if (myUnflushedSince == 0) {
+        myUnflushedSince = System.currentTimeMillis();
+      }
     } catch (Throwable e) {
       //ignore
+      closeStream();
     }
-    flush();
   }
 
-  private void ensureStreamExist() throws FileNotFoundException {
-    if (myFile.isFile() && myFile.length() > myMaxFileLength) {
-      close();
-      FileUtil.delete(myFile);
+  private void ensureStreamExist() throws IOException {
+    if (myStream != null && myFileLength > myMaxFileLength) {
+      closeStream();
+      rotate();
     }
     if (myStream == null) {
+      if (myFile.isFile() && myFile.length() > myMaxFileLength) {
+        rotate();
+      }
       //noinspection IOResourceOpenedButNotSafelyClosed
-      myStream = new FileOutputStream(myFile, true);
+      myStream = new BufferedOutputStream(new FileOutputStream(myFile, true), 64 * 1024);
+      myFileLength = myFile.length();
+    }
+  }
+
+  private void rotate() {
+    if (BACKUPS == 0) {
+      FileUtil.delete(myFile);
+      return;
     }
+    FileUtil.delete(getBackup(BACKUPS));
+    for (int i = BACKUPS - 1; i >= 1; i--) {
+      final File backup = getBackup(i);
+      if (backup.isFile()) {
+        backup.renameTo(getBackup(i + 1));
+      }
+    }
+    if (!myFile.renameTo(getBackup(1))) {
+      FileUtil.delete(myFile);
+    }
+  }
+
+  private File getBackup(final int number) {
+    return new File(myFile.getPath() + "." + number);
   }
 
-  public synchronized void flush() {
+  private void flushStream() {
     if (myStream != null) {
       try {
         myStream.flush();
@@ -63,7 +252,7 @@ public class LoggerToFile {
     }
   }
 
-  public synchronized void close() {
+  private void closeStream() {
     if (myStream != null) {
       try {
         myStream.close();
@@ -71,6 +260,7 @@ public class LoggerToFile {
         //ignore
       } finally {
         myStream = null;
+        myUnflushedSince = 0;
       }
     }
   }
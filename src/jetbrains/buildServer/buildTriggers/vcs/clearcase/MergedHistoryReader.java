@@ -0,0 +1,320 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import com.intellij.openapi.util.io.FileUtil;
+import java.io.*;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.CommandScheduler;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Merges the histories of several paths newest first, events of the same date keep the order of the sources.
+ * <p/>
+ * Every source is read by its own task on the given executor, the task opens, reads and closes the source on its thread
+ * with the priority of the thread which created the reader. The events are passed to the merge in batches, only a limited
+ * number of batches of a source is kept in memory and the later ones are spilled to temporary files. A task never waits
+ * for the merge: its lshistory holds a scheduler slot and an executor thread which the sources not started yet may need.
+ */
+class MergedHistoryReader implements HistoryReader {
+  private static final int BATCH_SIZE = 256;
+
+  interface Source {
+    @NotNull
+    HistoryReader open() throws IOException, VcsException;
+  }
+
+  private final List<SourceQueue> myQueues = new ArrayList<SourceQueue>();
+  private final List<Future<?>> myTasks = new ArrayList<Future<?>>();
+  private final PriorityQueue<Head> myHeads = new PriorityQueue<Head>();
+  private boolean myStarted = false;
+
+  /**
+   * @param batchesInMemory number of batches of every source kept in memory before the next ones are spilled
+   */
+  MergedHistoryReader(@NotNull final List<Source> sources, @NotNull final ExecutorService executor, final int batchesInMemory) {
+    final CommandScheduler.Priority priority = CommandScheduler.getCurrentPriority();
+    for (final Source source : sources) {
+      final SourceQueue queue = new SourceQueue(myQueues.size(), batchesInMemory);
+      myQueues.add(queue);
+      myTasks.add(executor.submit(new Runnable() {
+        public void run() {
+          final CommandScheduler.Priority previousPriority = CommandScheduler.setCurrentPriority(priority);
+          try {
+            queue.fill(source);
+          } finally {
+            CommandScheduler.setCurrentPriority(previousPriority);
+          }
+        }
+      }));
+    }
+  }
+
+  @Nullable
+  public HistoryElement readNext() throws IOException, VcsException {
+    if (!myStarted) {
+      myStarted = true;
+      for (SourceQueue queue : myQueues) {
+        addHead(queue);
+      }
+    }
+    final Head head = myHeads.poll();
+    if (head == null) return null;
+    addHead(myQueues.get(head.mySource));
+    return head.myElement;
+  }
+
+  private void addHead(final SourceQueue queue) throws IOException, VcsException {
+    final Head head = queue.next();
+    if (head != null) {
+      myHeads.add(head);
+    }
+  }
+
+  public void close() {
+    for (Future<?> task : myTasks) {
+      //a task which has not started yet does not run the query at all
+      task.cancel(false);
+    }
+    for (SourceQueue queue : myQueues) {
+      queue.close();
+    }
+  }
+
+  private static class Head implements Comparable<Head> {
+    private final HistoryElement myElement;
+    private final long myDate;
+    private final int mySource;
+
+    private Head(final HistoryElement element, final long date, final int source) {
+      myElement = element;
+      myDate = date;
+      mySource = source;
+    }
+
+    public int compareTo(final Head o) {
+      if (myDate != o.myDate) return myDate > o.myDate ? -1 : 1;
+      return mySource < o.mySource ? -1 : (mySource == o.mySource ? 0 : 1);
+    }
+  }
+
+  /**
+   * Batches of one source, filled by its task and read by the merge.
+   */
+  private static class SourceQueue {
+    private final int mySource;
+    private final int myBatchesInMemory;
+    private final LinkedBlockingQueue<Batch> myBatches = new LinkedBlockingQueue<Batch>();
+    private final AtomicInteger myQueuedInMemory = new AtomicInteger();
+    private volatile boolean myClosed = false;
+    //read by the merge only
+    private Batch myCurrent;
+
+    private SourceQueue(final int source, final int batchesInMemory) {
+      mySource = source;
+      myBatchesInMemory = batchesInMemory;
+    }
+
+    private void fill(final Source source) {
+      try {
+        final HistoryReader reader = source.open();
+        try {
+          List<HistoryElement> elements = new ArrayList<HistoryElement>(BATCH_SIZE);
+          long[] dates = new long[BATCH_SIZE];
+          HistoryElement element;
+          while (!myClosed && (element = reader.readNext()) != null) {
+            dates[elements.size()] = element.getDateMillis();
+            elements.add(element);
+            if (elements.size() == BATCH_SIZE) {
+              add(elements, dates);
+              elements = new ArrayList<HistoryElement>(BATCH_SIZE);
+              dates = new long[BATCH_SIZE];
+            }
+          }
+          if (!elements.isEmpty()) {
+            add(elements, dates);
+          }
+        } finally {
+          reader.close();
+        }
+        myBatches.add(new LastBatch(null));
+      } catch (Throwable e) {
+        myBatches.add(new LastBatch(e));
+      } finally {
+        if (myClosed) {
+          discard();
+        }
+      }
+    }
+
+    private void add(final List<HistoryElement> elements, final long[] dates) throws IOException {
+      //only this task increases the counter
+      if (myQueuedInMemory.get() < myBatchesInMemory) {
+        myQueuedInMemory.incrementAndGet();
+        myBatches.add(new MemoryBatch(elements, dates));
+        return;
+      }
+
+      final File file = FileUtil.createTempFile("cc", "history");
+      try {
+        final OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+          for (HistoryElement element : elements) {
+            element.writeRecord(output);
+          }
+        } finally {
+          output.close();
+        }
+      } catch (IOException e) {
+        FileUtil.delete(file);
+        throw e;
+      }
+      myBatches.add(new SpilledBatch(file));
+    }
+
+    /**
+     * @return the next element of the source or null if there are no more elements
+     */
+    @Nullable
+    private Head next() throws IOException, VcsException {
+      while (true) {
+        if (myCurrent == null) {
+          try {
+            myCurrent = myBatches.take();
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while reading history");
+          }
+          if (myCurrent instanceof MemoryBatch) {
+            myQueuedInMemory.decrementAndGet();
+          }
+        }
+        final Head head = myCurrent.next(mySource);
+        if (head != null || myCurrent instanceof LastBatch) return head;
+        myCurrent.discard();
+        myCurrent = null;
+      }
+    }
+
+    private void close() {
+      myClosed = true;
+      if (myCurrent != null) {
+        myCurrent.discard();
+      }
+      discard();
+    }
+
+    /**
+     * Releases the batches not read yet, called by both the merge and the task: a batch may be added while the merge closes.
+     */
+    private void discard() {
+      Batch batch;
+      while ((batch = myBatches.poll()) != null) {
+        batch.discard();
+      }
+    }
+  }
+
+  private abstract static class Batch {
+    /**
+     * @return the next element of the batch or null if the batch is read
+     */
+    @Nullable
+    abstract Head next(int source) throws IOException, VcsException;
+
+    void discard() {
+    }
+  }
+
+  private static class MemoryBatch extends Batch {
+    private final List<HistoryElement> myElements;
+    private final long[] myDates;
+    private int myPos = 0;
+
+    private MemoryBatch(final List<HistoryElement> elements, final long[] dates) {
+      myElements = elements;
+      myDates = dates;
+    }
+
+    Head next(final int source) {
+      if (myPos == myElements.size()) return null;
+      final Head head = new Head(myElements.get(myPos), myDates[myPos], source);
+      myPos++;
+      return head;
+    }
+  }
+
+  private static class SpilledBatch extends Batch {
+    private final File myFile;
+    private HistoryRecordReader myReader;
+
+    private SpilledBatch(final File file) {
+      myFile = file;
+    }
+
+    Head next(final int source) throws IOException, VcsException {
+      if (myReader == null) {
+        myReader = new HistoryRecordReader(new BufferedInputStream(new FileInputStream(myFile)));
+      }
+      final HistoryElement element = myReader.readNext();
+      if (element == null) return null;
+      try {
+        //the records were parsed before they were spilled
+        return new Head(element, element.getDateMillis(), source);
+      } catch (ParseException e) {
+        throw new VcsException(e);
+      }
+    }
+
+    void discard() {
+      if (myReader != null) {
+        try {
+          myReader.close();
+        } catch (IOException e) {
+          //the file is deleted anyway
+        }
+      }
+      FileUtil.delete(myFile);
+    }
+  }
+
+  /**
+   * The end of a source, with the error which ended it if any.
+   */
+  private static class LastBatch extends Batch {
+    private final Throwable myError;
+
+    private LastBatch(@Nullable final Throwable error) {
+      myError = error;
+    }
+
+    Head next(final int source) throws IOException, VcsException {
+      if (myError instanceof IOException) throw (IOException)myError;
+      if (myError instanceof VcsException) throw (VcsException)myError;
+      if (myError != null) throw new VcsException(myError);
+      return null;
+    }
+  }
+}
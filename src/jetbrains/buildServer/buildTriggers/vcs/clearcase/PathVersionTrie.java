@@ -0,0 +1,79 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Remembers the versions resolved for path prefixes by one connection. Each node corresponds to a path prefix exactly
+ * as it is passed to the resolution: the edge to a child is the path component with its version, if it has one,
+ * so prefixes which differ only in versions of their components are different nodes.
+ */
+class PathVersionTrie {
+  private final Node myFileRoot = new Node();
+  private final Node myDirectoryRoot = new Node();
+
+  @NotNull
+  public Node getRoot(final boolean isFile) {
+    return isFile ? myFileRoot : myDirectoryRoot;
+  }
+
+  public void clear() {
+    myFileRoot.myChildren = null;
+    myDirectoryRoot.myChildren = null;
+  }
+
+  public static class Node {
+    private Map<String, Node> myChildren;
+    private boolean myIsResolved = false;
+    private String myVersion;
+
+    @NotNull
+    public Node getChild(@NotNull final String name, @Nullable final String version) {
+      final String key = version == null ? name : name + version;
+      if (myChildren == null) {
+        myChildren = new HashMap<String, Node>();
+      }
+      Node child = myChildren.get(key);
+      if (child == null) {
+        child = new Node();
+        myChildren.put(key, child);
+      }
+      return child;
+    }
+
+    public boolean isResolved() {
+      return myIsResolved;
+    }
+
+    /**
+     * @return version resolved for the prefix or null if no version was found
+     */
+    @Nullable
+    public String getVersion() {
+      return myVersion;
+    }
+
+    public void setVersion(@Nullable final String version) {
+      myVersion = version;
+      myIsResolved = true;
+    }
+  }
+}
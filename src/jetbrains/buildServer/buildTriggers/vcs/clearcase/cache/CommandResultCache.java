@@ -0,0 +1,245 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.cache;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.Hash;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Outputs of cleartool queries which cannot change: queries about one fully qualified version (file@@/main/br/3).
+ * Entries are kept in a memory LRU and, if the directory is set, on disk: one subdirectory per element, so all
+ * the results about an element are dropped at once when one of its versions is removed (rmver).
+ * <p/>
+ * Keys are built by the caller from the VOB, the subcommand and the normalized arguments.
+ * <p/>
+ * The number of entries on disk is limited too: when it grows above the limit, the element directories
+ * used least recently are removed.
+ */
+public class CommandResultCache {
+  private static final Logger LOG = Logger.getLogger(CommandResultCache.class);
+
+  @NonNls public static final String DIR_NAME = "commands";
+  private static final int FILE_VERSION = 1;
+
+  private final int myMaxEntries;
+  private final int myMaxEntrySize;
+  private final int myMaxDiskEntries;
+  private final Map<String, Entry> myEntries;
+  private volatile File myDir;
+  //the first write after start sweeps the entries left by the previous runs
+  private final AtomicInteger myWritesBeforeSweep = new AtomicInteger(0);
+  private final Object mySweepLock = new Object();
+
+  public CommandResultCache(final int maxEntries, final int maxEntrySize, final int maxDiskEntries) {
+    myMaxEntries = maxEntries;
+    myMaxEntrySize = maxEntrySize;
+    myMaxDiskEntries = maxDiskEntries;
+    myEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+        return size() > myMaxEntries;
+      }
+    };
+  }
+
+  public boolean isEnabled() {
+    return myMaxEntries > 0;
+  }
+
+  /**
+   * Sets the directory of the disk tier, results are kept in memory only until it is set.
+   */
+  public void setDirectory(@Nullable final File dir) {
+    myDir = dir;
+  }
+
+  @Nullable
+  public byte[] get(@NotNull final String element, @NotNull final String key) {
+    if (!isEnabled()) return null;
+    synchronized (myEntries) {
+      final Entry entry = myEntries.get(key);
+      if (entry != null) return entry.myOutput;
+    }
+
+    final byte[] output = readFromDisk(element, key);
+    if (output != null) {
+      putToMemory(element, key, output);
+    }
+    return output;
+  }
+
+  public void put(@NotNull final String element, @NotNull final String key, @NotNull final byte[] output) {
+    if (!isEnabled() || output.length > myMaxEntrySize) return;
+    putToMemory(element, key, output);
+    writeToDisk(element, key, output);
+  }
+
+  /**
+   * Drops all the results about the element.
+   */
+  public void invalidate(@NotNull final String element) {
+    if (!isEnabled()) return;
+    synchronized (myEntries) {
+      for (Iterator<Entry> it = myEntries.values().iterator(); it.hasNext();) {
+        if (element.equals(it.next().myElement)) {
+          it.remove();
+        }
+      }
+    }
+    final File elementDir = getElementDir(element);
+    if (elementDir != null) {
+      FileUtil.delete(elementDir);
+    }
+  }
+
+  private void putToMemory(final String element, final String key, final byte[] output) {
+    synchronized (myEntries) {
+      myEntries.put(key, new Entry(element, output));
+    }
+  }
+
+  @Nullable
+  private File getElementDir(final String element) {
+    final File dir = myDir;
+    return dir == null ? null : new File(dir, String.valueOf(Hash.calc(element)));
+  }
+
+  @Nullable
+  private File getEntryFile(final String element, final String key) {
+    final File elementDir = getElementDir(element);
+    return elementDir == null ? null : new File(elementDir, String.valueOf(Hash.calc(key)));
+  }
+
+  @Nullable
+  private byte[] readFromDisk(final String element, final String key) {
+    final File file = getEntryFile(element, key);
+    if (file == null || !file.isFile()) return null;
+    try {
+      final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (input.readInt() != FILE_VERSION || !key.equals(input.readUTF())) {
+          //different format or hash collision
+          return null;
+        }
+        final byte[] output = new byte[input.readInt()];
+        input.readFully(output);
+        //the modification time of the element directory is the time of its last use
+        file.getParentFile().setLastModified(System.currentTimeMillis());
+        return output;
+      } finally {
+        input.close();
+      }
+    } catch (IOException e) {
+      LOG.debug("Cannot read cached command result from " + file, e);
+      FileUtil.delete(file);
+      return null;
+    }
+  }
+
+  private void writeToDisk(final String element, final String key, final byte[] output) {
+    final File file = getEntryFile(element, key);
+    if (file == null) return;
+    final File dir = file.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) return;
+    final File tempFile = new File(dir, file.getName() + ".tmp" + Thread.currentThread().getId());
+    try {
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        out.writeInt(FILE_VERSION);
+        out.writeUTF(key);
+        out.writeInt(output.length);
+        out.write(output);
+      } finally {
+        out.close();
+      }
+      if (!tempFile.renameTo(file)) {
+        FileUtil.delete(file);
+        if (!tempFile.renameTo(file)) {
+          FileUtil.delete(tempFile);
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug("Cannot write cached command result to " + file, e);
+      FileUtil.delete(tempFile);
+    }
+    if (myMaxDiskEntries > 0 && myWritesBeforeSweep.decrementAndGet() < 0) {
+      myWritesBeforeSweep.set(Math.max(1, myMaxDiskEntries / 10));
+      sweepDisk();
+    }
+  }
+
+  /**
+   * Removes the element directories used least recently while there are more than the limit of entries on disk
+   * (90% of the limit is left).
+   */
+  private void sweepDisk() {
+    final File dir = myDir;
+    if (dir == null) return;
+    synchronized (mySweepLock) {
+      final File[] elementDirs = dir.listFiles();
+      if (elementDirs == null) return;
+      final Map<File, Integer> entryCounts = new HashMap<File, Integer>();
+      final Map<File, Long> lastUsed = new HashMap<File, Long>();
+      int total = 0;
+      for (File elementDir : elementDirs) {
+        final String[] entries = elementDir.list();
+        final int count = entries == null ? 1 : entries.length;
+        entryCounts.put(elementDir, count);
+        lastUsed.put(elementDir, elementDir.lastModified());
+        total += count;
+      }
+      if (total <= myMaxDiskEntries) return;
+
+      Arrays.sort(elementDirs, new Comparator<File>() {
+        public int compare(final File o1, final File o2) {
+          final long time1 = lastUsed.get(o1);
+          final long time2 = lastUsed.get(o2);
+          return time1 < time2 ? -1 : time1 > time2 ? 1 : 0;
+        }
+      });
+      final int target = myMaxDiskEntries / 10 * 9;
+      int removed = 0;
+      for (int i = 0; i < elementDirs.length && total > target; i++) {
+        FileUtil.delete(elementDirs[i]);
+        total -= entryCounts.get(elementDirs[i]);
+        removed++;
+      }
+      LOG.debug("Removed cached command results of " + removed + " elements from " + dir);
+    }
+  }
+
+  private static class Entry {
+    private final String myElement;
+    private final byte[] myOutput;
+
+    private Entry(final String element, final byte[] output) {
+      myElement = element;
+      myOutput = output;
+    }
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.cache;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseFileAttr;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.Hash;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Attributes of elements (element type and protection) which almost never change. Entries are keyed by
+ * the element OID, so a renamed element keeps its entry and another element at the same path does not get it,
+ * and kept in a memory LRU and, if the directory is set, on disk: one small file per element.
+ * <p/>
+ * Changes of the attributes (chtype, protect) are minor events which lshistory does not report, so an entry expires
+ * after the given time since the attributes were read. The disk tier keeps at most the given number of entries,
+ * the least recently written ones are removed first.
+ */
+public class ElementAttributeCache {
+  private static final Logger LOG = Logger.getLogger(ElementAttributeCache.class);
+
+  @NonNls public static final String DIR_NAME = "attrs";
+  private static final int FILE_VERSION = 2;
+
+  private final int myMaxEntries;
+  private final long myTtlMillis;
+  private final int myMaxDiskEntries;
+  private final Map<String, Entry> myEntries;
+  private volatile File myDir;
+  //the first write after start sweeps the entries left by the previous runs
+  private final AtomicInteger myWritesBeforeSweep = new AtomicInteger(0);
+  private final Object mySweepLock = new Object();
+
+  /**
+   * @param ttlMillis      entries are read again after this time, 0 means never
+   * @param maxDiskEntries 0 means no limit
+   */
+  public ElementAttributeCache(final int maxEntries, final long ttlMillis, final int maxDiskEntries) {
+    myMaxEntries = maxEntries;
+    myTtlMillis = ttlMillis;
+    myMaxDiskEntries = maxDiskEntries;
+    myEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+        return size() > myMaxEntries;
+      }
+    };
+  }
+
+  public boolean isEnabled() {
+    return myMaxEntries > 0;
+  }
+
+  /**
+   * Sets the directory of the disk tier, attributes are kept in memory only until it is set.
+   */
+  public void setDirectory(@Nullable final File dir) {
+    myDir = dir;
+  }
+
+  @Nullable
+  public ClearCaseFileAttr get(@NotNull final String oid) {
+    if (!isEnabled()) return null;
+    synchronized (myEntries) {
+      final Entry entry = myEntries.get(oid);
+      if (entry != null) {
+        if (!isExpired(entry)) return entry.myAttr;
+        myEntries.remove(oid);
+      }
+    }
+
+    final Entry entry = readFromDisk(oid);
+    if (entry == null) return null;
+    synchronized (myEntries) {
+      myEntries.put(oid, entry);
+    }
+    return entry.myAttr;
+  }
+
+  public void put(@NotNull final String oid, @NotNull final ClearCaseFileAttr attr) {
+    if (!isEnabled()) return;
+    final Entry entry = new Entry(attr, System.currentTimeMillis());
+    synchronized (myEntries) {
+      myEntries.put(oid, entry);
+    }
+    writeToDisk(oid, entry);
+  }
+
+  private boolean isExpired(final Entry entry) {
+    return myTtlMillis > 0 && System.currentTimeMillis() - entry.myReadTime > myTtlMillis;
+  }
+
+  @Nullable
+  private File getEntryFile(final String oid) {
+    final File dir = myDir;
+    return dir == null ? null : new File(dir, String.valueOf(Hash.calc(oid)));
+  }
+
+  @Nullable
+  private Entry readFromDisk(final String oid) {
+    final File file = getEntryFile(oid);
+    if (file == null || !file.isFile()) return null;
+    try {
+      final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      final Entry entry;
+      try {
+        if (input.readInt() != FILE_VERSION || !oid.equals(input.readUTF())) {
+          //different format or hash collision
+          return null;
+        }
+        final long readTime = input.readLong();
+        final boolean executable = input.readBoolean();
+        final boolean text = input.readBoolean();
+        entry = new Entry(new ClearCaseFileAttr(executable, text), readTime);
+      } finally {
+        input.close();
+      }
+      if (isExpired(entry)) {
+        FileUtil.delete(file);
+        return null;
+      }
+      return entry;
+    } catch (IOException e) {
+      LOG.debug("Cannot read cached element attributes from " + file, e);
+      FileUtil.delete(file);
+      return null;
+    }
+  }
+
+  private void writeToDisk(final String oid, final Entry entry) {
+    final File file = getEntryFile(oid);
+    if (file == null) return;
+    final File dir = file.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) return;
+    final File tempFile = new File(dir, file.getName() + ".tmp" + Thread.currentThread().getId());
+    try {
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        out.writeInt(FILE_VERSION);
+        out.writeUTF(oid);
+        out.writeLong(entry.myReadTime);
+        out.writeBoolean(entry.myAttr.isIsExecutable());
+        out.writeBoolean(entry.myAttr.isIsText());
+      } finally {
+        out.close();
+      }
+      if (!tempFile.renameTo(file)) {
+        FileUtil.delete(file);
+        if (!tempFile.renameTo(file)) {
+          FileUtil.delete(tempFile);
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug("Cannot write cached element attributes to " + file, e);
+      FileUtil.delete(tempFile);
+    }
+    if (myMaxDiskEntries > 0 && myWritesBeforeSweep.decrementAndGet() < 0) {
+      myWritesBeforeSweep.set(Math.max(1, myMaxDiskEntries / 10));
+      sweepDisk();
+    }
+  }
+
+  /**
+   * Removes the entries written least recently while there are more than the limit of entries on disk
+   * (90% of the limit is left).
+   */
+  private void sweepDisk() {
+    final File dir = myDir;
+    if (dir == null) return;
+    synchronized (mySweepLock) {
+      final File[] files = dir.listFiles();
+      if (files == null || files.length <= myMaxDiskEntries) return;
+
+      final Map<File, Long> lastWritten = new HashMap<File, Long>();
+      for (File file : files) {
+        lastWritten.put(file, file.lastModified());
+      }
+      Arrays.sort(files, new Comparator<File>() {
+        public int compare(final File o1, final File o2) {
+          final long time1 = lastWritten.get(o1);
+          final long time2 = lastWritten.get(o2);
+          return time1 < time2 ? -1 : time1 > time2 ? 1 : 0;
+        }
+      });
+      final int toRemove = files.length - myMaxDiskEntries / 10 * 9;
+      for (int i = 0; i < toRemove; i++) {
+        FileUtil.delete(files[i]);
+      }
+      LOG.debug("Removed " + toRemove + " cached element attributes from " + dir);
+    }
+  }
+
+  private static class Entry {
+    private final ClearCaseFileAttr myAttr;
+    private final long myReadTime;
+
+    private Entry(final ClearCaseFileAttr attr, final long readTime) {
+      myAttr = attr;
+      myReadTime = readTime;
+    }
+  }
+}
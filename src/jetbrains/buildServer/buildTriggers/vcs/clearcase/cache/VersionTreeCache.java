@@ -0,0 +1,186 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.cache;
+
+import java.io.File;
+import java.util.*;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Versions listed by lsvtree per element path, so that the version tree of an element is not requested
+ * from the VOB server every time it is needed.
+ * <p/>
+ * Entries are kept up to date by the history events read from lshistory: a new version is appended to the cached
+ * versions when its predecessor is the last cached version of the branch, any other event concerning the element
+ * (rmver, mkbranch, ...) drops the cached versions. Events older than the entry (with the allowed clock
+ * difference between the VOB server and this host) are already reflected in it and are ignored. An entry also expires
+ * after the given time since it was read.
+ * <p/>
+ * The cached lsvtree output includes the labels of the versions, but label changes (mklabel, rmlabel) are minor events
+ * which lshistory does not report. Callers which select versions by labels pass a shorter maximum age to {@link #get(String, long)}.
+ * <p/>
+ * Entries are grouped by the element path without versions which is how history events name elements;
+ * the paths used to read the tree (possibly with versions of the parent directories) are the keys within a group.
+ */
+public class VersionTreeCache {
+  @NonNls private static final String CREATE_VERSION_EVENT = "create version";
+
+  private final int myMaxEntries;
+  private final long myTtlMillis;
+  private final long myClockSkewMillis;
+  private final Map<String, Entry> myEntries;
+  private final Map<String, Set<String>> myGroups = new HashMap<String, Set<String>>();
+
+  public VersionTreeCache(final int maxEntries, final long ttlMillis, final long clockSkewMillis) {
+    myMaxEntries = maxEntries;
+    myTtlMillis = ttlMillis;
+    myClockSkewMillis = clockSkewMillis;
+    myEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+        if (size() <= myMaxEntries) return false;
+        removeFromGroup(eldest.getValue().myGroup, eldest.getKey());
+        return true;
+      }
+    };
+  }
+
+  public boolean isEnabled() {
+    return myMaxEntries > 0;
+  }
+
+  /**
+   * @param maxAgeMillis the entry is not used if it was read earlier than this, 0 if only the cache expiration applies
+   * @return versions in the lsvtree order or null if they are not cached
+   */
+  @Nullable
+  public synchronized List<String> get(@NotNull final String key, final long maxAgeMillis) {
+    final Entry entry = myEntries.get(key);
+    if (entry == null) return null;
+    final long age = System.currentTimeMillis() - entry.myReadTime;
+    if (myTtlMillis > 0 && age > myTtlMillis) {
+      remove(key);
+      return null;
+    }
+    if (maxAgeMillis > 0 && age > maxAgeMillis) return null;
+    return new ArrayList<String>(entry.myVersions);
+  }
+
+  public synchronized void put(@NotNull final String group, @NotNull final String key, @NotNull final List<String> versions, final long readTime) {
+    if (!isEnabled()) return;
+    remove(key);
+    myEntries.put(key, new Entry(group, versions, readTime));
+    Set<String> keys = myGroups.get(group);
+    if (keys == null) {
+      keys = new HashSet<String>();
+      myGroups.put(group, keys);
+    }
+    keys.add(key);
+  }
+
+  /**
+   * Applies the history event to the cached versions of the element.
+   * @param version the version the event is about, e.g. main/br/3
+   */
+  public synchronized void eventRead(@NotNull final String group, @NotNull final String event, @NotNull final String version, final long eventTime) {
+    final Set<String> keys = myGroups.get(group);
+    if (keys == null) return;
+    for (String key : new ArrayList<String>(keys)) {
+      final Entry entry = myEntries.get(key);
+      if (entry == null || eventTime < entry.myReadTime - myClockSkewMillis) continue;
+      if (!CREATE_VERSION_EVENT.equals(event) || !entry.appendVersion(version)) {
+        remove(key);
+      }
+    }
+  }
+
+  public synchronized void invalidate(@NotNull final String group) {
+    final Set<String> keys = myGroups.remove(group);
+    if (keys == null) return;
+    for (String key : keys) {
+      myEntries.remove(key);
+    }
+  }
+
+  private void remove(final String key) {
+    final Entry entry = myEntries.remove(key);
+    if (entry != null) {
+      removeFromGroup(entry.myGroup, key);
+    }
+  }
+
+  private void removeFromGroup(final String group, final String key) {
+    final Set<String> keys = myGroups.get(group);
+    if (keys != null) {
+      keys.remove(key);
+      if (keys.isEmpty()) {
+        myGroups.remove(group);
+      }
+    }
+  }
+
+  /**
+   * Removes the labels listed by lsvtree after the version: "main/3 (LABEL1, LABEL2)" -> "main/3".
+   */
+  @NotNull
+  private static String stripLabels(@NotNull final String version) {
+    final int labelsStart = version.indexOf(" (");
+    return labelsStart == -1 ? version.trim() : version.substring(0, labelsStart).trim();
+  }
+
+  private static class Entry {
+    private final String myGroup;
+    private final List<String> myVersions;
+    private final Set<String> myVersionPaths = new HashSet<String>();
+    private final long myReadTime;
+
+    private Entry(final String group, final List<String> versions, final long readTime) {
+      myGroup = group;
+      myVersions = new ArrayList<String>(versions);
+      myReadTime = readTime;
+      for (String version : versions) {
+        myVersionPaths.add(stripLabels(version));
+      }
+    }
+
+    /**
+     * @return false if the version cannot be appended and the entry must be dropped
+     */
+    private boolean appendVersion(final String version) {
+      final String versionPath = stripLabels(version);
+      if (myVersionPaths.contains(versionPath)) return true;
+
+      final int separator = versionPath.lastIndexOf(File.separatorChar);
+      final int number;
+      try {
+        number = Integer.parseInt(versionPath.substring(separator + 1));
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      //the first version on a branch is created with the branch, which is not appended
+      if (separator == -1 || number == 0) return false;
+      final String predecessor = versionPath.substring(0, separator + 1) + (number - 1);
+      if (!myVersionPaths.contains(predecessor)) return false;
+
+      //sub branches of the predecessor are listed before, so the version is attached to the end of its branch
+      myVersions.add(versionPath);
+      myVersionPaths.add(versionPath);
+      return true;
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpec;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Properties of ClearCase views which are needed by every connection: view roots, dynamic/snapshot flags and parsed config specs.
+ * <p/>
+ * A config spec is used without any check during the config spec TTL since it was read or checked. After that the caller
+ * reads the config spec text again and the parsed config spec is reused if the hash of the text has not changed
+ * (config specs including other files are always parsed again, the included files could have changed).
+ * View roots and dynamic flags hardly ever change, they just expire after the view TTL.
+ */
+public class ViewMetadataCache {
+  private final long myConfigSpecTtlMillis;
+  private final long myViewTtlMillis;
+  private final Map<String, TimedValue<String>> myViewRoots = new ConcurrentHashMap<String, TimedValue<String>>();
+  private final Map<String, TimedValue<Boolean>> myDynamicFlags = new ConcurrentHashMap<String, TimedValue<Boolean>>();
+  private final Map<String, ConfigSpecEntry> myConfigSpecs = new ConcurrentHashMap<String, ConfigSpecEntry>();
+
+  public ViewMetadataCache(final long configSpecTtlMillis, final long viewTtlMillis) {
+    myConfigSpecTtlMillis = configSpecTtlMillis;
+    myViewTtlMillis = viewTtlMillis;
+  }
+
+  @Nullable
+  public String getViewRoot(@NotNull final String path) {
+    return getValidValue(myViewRoots, path);
+  }
+
+  public void putViewRoot(@NotNull final String path, @NotNull final String viewRoot) {
+    if (myViewTtlMillis > 0) {
+      myViewRoots.put(path, new TimedValue<String>(viewRoot));
+    }
+  }
+
+  @Nullable
+  public Boolean isViewDynamic(@NotNull final String viewRoot) {
+    return getValidValue(myDynamicFlags, viewRoot);
+  }
+
+  public void putViewDynamic(@NotNull final String viewRoot, final boolean dynamic) {
+    if (myViewTtlMillis > 0) {
+      myDynamicFlags.put(viewRoot, new TimedValue<Boolean>(dynamic));
+    }
+  }
+
+  /**
+   * @return the config spec of the view if it was read or checked during the config spec TTL
+   */
+  @Nullable
+  public ConfigSpec getConfigSpec(@NotNull final String viewRoot) {
+    final ConfigSpecEntry entry = myConfigSpecs.get(viewRoot);
+    if (entry == null || System.currentTimeMillis() - entry.myCheckTime > myConfigSpecTtlMillis) return null;
+    return entry.myConfigSpec;
+  }
+
+  /**
+   * @return the config spec of the view parsed from the text with the given hash, it is considered checked now
+   */
+  @Nullable
+  public ConfigSpec getConfigSpec(@NotNull final String viewRoot, final long textHash) {
+    final ConfigSpecEntry entry = myConfigSpecs.get(viewRoot);
+    if (entry == null || entry.myTextHash == null || entry.myTextHash != textHash) return null;
+    myConfigSpecs.put(viewRoot, new ConfigSpecEntry(entry.myConfigSpec, entry.myTextHash));
+    return entry.myConfigSpec;
+  }
+
+  /**
+   * @param textHash hash of the config spec text or null if the config spec cannot be reused when its text is the same
+   */
+  public void putConfigSpec(@NotNull final String viewRoot, @Nullable final Long textHash, @NotNull final ConfigSpec configSpec) {
+    if (myConfigSpecTtlMillis > 0 || textHash != null) {
+      myConfigSpecs.put(viewRoot, new ConfigSpecEntry(configSpec, textHash));
+    }
+  }
+
+  @Nullable
+  private <T> T getValidValue(final Map<String, TimedValue<T>> values, final String key) {
+    final TimedValue<T> value = values.get(key);
+    if (value == null) return null;
+    if (System.currentTimeMillis() - value.myTime > myViewTtlMillis) {
+      values.remove(key);
+      return null;
+    }
+    return value.myValue;
+  }
+
+  private static class TimedValue<T> {
+    private final T myValue;
+    private final long myTime = System.currentTimeMillis();
+
+    private TimedValue(final T value) {
+      myValue = value;
+    }
+  }
+
+  private static class ConfigSpecEntry {
+    private final ConfigSpec myConfigSpec;
+    private final Long myTextHash;
+    private final long myCheckTime = System.currentTimeMillis();
+
+    private ConfigSpecEntry(final ConfigSpec configSpec, final Long textHash) {
+      myConfigSpec = configSpec;
+      myTextHash = textHash;
+    }
+  }
+}
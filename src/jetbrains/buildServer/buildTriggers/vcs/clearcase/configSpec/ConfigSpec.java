@@ -37,5 +37,10 @@ public interface ConfigSpec {
 
   boolean isUnderLoadRules(final String ccViewRoot, final String fullFileName) throws IOException, VcsException;
 
+  /**
+   * @return true if some rule selects versions by a label, then the current labels of the versions matter
+   */
+  boolean hasLabelRules();
+
   void setViewIsDynamic(final boolean viewIsDynamic);
 }
@@ -80,6 +80,13 @@ public class ConfigSpecImpl implements ConfigSpec {
     return myLoadRules;
   }
 
+  public boolean hasLabelRules() {
+    for (ConfigSpecStandardRule rule : myStandardRules) {
+      if (rule.isLabelRule()) return true;
+    }
+    return false;
+  }
+
   private boolean doIsVersionIsInsideView(final ClearCaseConnection connection, final String fullFileName, final Version version, final boolean isFile) throws VcsException, IOException {
     final String normalizedFullFileName = CCPathElement.normalizeFileName(fullFileName);
     if (!isUnderLoadRules(connection.getClearCaseViewPath(), normalizedFullFileName)) return false;
@@ -186,6 +186,16 @@ public class ConfigSpecParseUtil {
     return includesIndex;
   }
 
+  public static boolean hasIncludes(final String configSpecText) {
+    for (String line : configSpecText.split("[\\n;]")) {
+      final String trimmedLine = line.trim();
+      if (trimmedLine.length() != 0 && ConfigSpecRuleTokens.FILE_INCLUSION.equalsIgnoreCase(trimQuotes(extractFirstWord(trimmedLine).trim()))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public static String extractFirstWord(final String line) {
     if (line.startsWith("\"")) {
       final int nextQuotePos = line.indexOf('\"', 1);
@@ -77,6 +77,12 @@ public class ConfigSpecStandardRule {
     return ResultType.BRANCH_HAS_BEEN_MADE;
   }
 
+  public boolean isLabelRule() {
+    return !StringUtil.isNumber(myVersion) &&
+           !ConfigSpecRuleTokens.CHECKEDOUT.equalsIgnoreCase(myVersion) &&
+           !ConfigSpecRuleTokens.LATEST.equalsIgnoreCase(myVersion);
+  }
+
   @Nullable
   public Version findVersion(final VersionTree versionTree, final String fullFileName)
     throws VcsException, IOException {
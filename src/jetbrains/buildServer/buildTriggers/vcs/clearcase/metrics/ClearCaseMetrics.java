@@ -0,0 +1,58 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.metrics;
+
+import java.util.List;
+
+public class ClearCaseMetrics implements ClearCaseMetricsMBean {
+  public long getCommandCount() {
+    long result = 0;
+    for (CommandStatistics statistics : CommandMetrics.getSnapshot()) {
+      result += statistics.getCount();
+    }
+    return result;
+  }
+
+  public long getErrorCount() {
+    long result = 0;
+    for (CommandStatistics statistics : CommandMetrics.getSnapshot()) {
+      result += statistics.getErrorCount();
+    }
+    return result;
+  }
+
+  public long getTotalLatencyMillis() {
+    long result = 0;
+    for (CommandStatistics statistics : CommandMetrics.getSnapshot()) {
+      result += statistics.getTotalLatencyMillis();
+    }
+    return result;
+  }
+
+  public String[] getStatistics() {
+    final List<CommandStatistics> snapshot = CommandMetrics.getSnapshot();
+    final String[] result = new String[snapshot.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = snapshot.get(i).toString();
+    }
+    return result;
+  }
+
+  public void reset() {
+    CommandMetrics.reset();
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.OutputLineProcessor;
+import jetbrains.buildServer.vcs.VcsException;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Counts executed cleartool commands, their latency, output volume and errors per subcommand and view.
+ * The numbers are available through {@link #getSnapshot()} and the JMX bean {@link #MBEAN_NAME}.
+ */
+public class CommandMetrics {
+  private static final Logger LOG = Logger.getLogger(CommandMetrics.class);
+
+  @NonNls public static final String MBEAN_NAME = "jetbrains.buildServer.clearcase:type=CommandMetrics";
+  private static final long[] LATENCY_BUCKET_BOUNDS = {10, 50, 100, 500, 1000, 5000, 30000};
+
+  private static final ConcurrentMap<String, Counters> ourCounters = new ConcurrentHashMap<String, Counters>();
+  private static boolean ourMBeanRegistered = false;
+
+  private CommandMetrics() {
+  }
+
+  @NotNull
+  public static long[] getLatencyBucketBounds() {
+    return LATENCY_BUCKET_BOUNDS.clone();
+  }
+
+  public static void commandExecuted(@NotNull final String viewPath, @NotNull final String subcommand, final long latencyMillis, final boolean failed) {
+    final Counters counters = getCounters(viewPath, subcommand);
+    counters.myCount.incrementAndGet();
+    if (failed) {
+      counters.myErrorCount.incrementAndGet();
+    }
+    counters.myTotalLatency.addAndGet(latencyMillis);
+    long max;
+    while ((max = counters.myMaxLatency.get()) < latencyMillis && !counters.myMaxLatency.compareAndSet(max, latencyMillis)) {
+      //retry
+    }
+    counters.myLatencyHistogram.incrementAndGet(getBucket(latencyMillis));
+  }
+
+  public static void outputRead(@NotNull final String viewPath, @NotNull final String subcommand, final long bytes) {
+    getCounters(viewPath, subcommand).myOutputBytes.addAndGet(bytes);
+  }
+
+  /**
+   * Counts bytes read from the command output, they are reported when the stream is closed.
+   */
+  @NotNull
+  public static InputStream countOutput(@NotNull final InputStream output, @NotNull final String viewPath, @NotNull final String subcommand) {
+    return new FilterInputStream(output) {
+      private long myBytes = 0;
+      private boolean myReported = false;
+
+      public int read() throws IOException {
+        final int result = super.read();
+        if (result != -1) myBytes++;
+        return result;
+      }
+
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+        final int result = super.read(b, off, len);
+        if (result > 0) myBytes += result;
+        return result;
+      }
+
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          if (!myReported) {
+            myReported = true;
+            outputRead(viewPath, subcommand, myBytes);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Counts the lines passed to the processor (with their line separators) as the command output.
+   */
+  @NotNull
+  public static OutputLineProcessor countOutput(@NotNull final OutputLineProcessor processor, @NotNull final String viewPath, @NotNull final String subcommand) {
+    final Counters counters = getCounters(viewPath, subcommand);
+    return new OutputLineProcessor() {
+      public void processLine(@NotNull final String line) throws IOException, VcsException {
+        counters.myOutputBytes.addAndGet(line.length() + 1);
+        processor.processLine(line);
+      }
+    };
+  }
+
+  @NotNull
+  public static List<CommandStatistics> getSnapshot() {
+    final List<CommandStatistics> result = new ArrayList<CommandStatistics>();
+    for (Counters counters : ourCounters.values()) {
+      final long[] histogram = new long[counters.myLatencyHistogram.length()];
+      for (int i = 0; i < histogram.length; i++) {
+        histogram[i] = counters.myLatencyHistogram.get(i);
+      }
+      result.add(new CommandStatistics(counters.myViewPath, counters.mySubcommand, counters.myCount.get(), counters.myErrorCount.get(),
+                                       counters.myTotalLatency.get(), counters.myMaxLatency.get(), counters.myOutputBytes.get(), histogram));
+    }
+    Collections.sort(result, new Comparator<CommandStatistics>() {
+      public int compare(final CommandStatistics o1, final CommandStatistics o2) {
+        final int bySubcommand = o1.getSubcommand().compareTo(o2.getSubcommand());
+        return bySubcommand != 0 ? bySubcommand : o1.getViewPath().compareTo(o2.getViewPath());
+      }
+    });
+    return result;
+  }
+
+  public static void reset() {
+    ourCounters.clear();
+  }
+
+  private static int getBucket(final long latencyMillis) {
+    for (int i = 0; i < LATENCY_BUCKET_BOUNDS.length; i++) {
+      if (latencyMillis < LATENCY_BUCKET_BOUNDS[i]) return i;
+    }
+    return LATENCY_BUCKET_BOUNDS.length;
+  }
+
+  private static Counters getCounters(final String viewPath, final String subcommand) {
+    final String key = subcommand + '\n' + viewPath;
+    Counters counters = ourCounters.get(key);
+    if (counters == null) {
+      registerMBean();
+      final Counters newCounters = new Counters(viewPath, subcommand);
+      counters = ourCounters.putIfAbsent(key, newCounters);
+      if (counters == null) {
+        counters = newCounters;
+      }
+    }
+    return counters;
+  }
+
+  private static synchronized void registerMBean() {
+    if (ourMBeanRegistered) return;
+    ourMBeanRegistered = true;
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName(MBEAN_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(new ClearCaseMetrics(), name);
+      }
+    } catch (Exception e) {
+      LOG.warn("Cannot register ClearCase metrics JMX bean: " + e.getLocalizedMessage());
+    }
+  }
+
+  private static class Counters {
+    private final String myViewPath;
+    private final String mySubcommand;
+    private final AtomicLong myCount = new AtomicLong();
+    private final AtomicLong myErrorCount = new AtomicLong();
+    private final AtomicLong myTotalLatency = new AtomicLong();
+    private final AtomicLong myMaxLatency = new AtomicLong();
+    private final AtomicLong myOutputBytes = new AtomicLong();
+    private final AtomicLongArray myLatencyHistogram = new AtomicLongArray(LATENCY_BUCKET_BOUNDS.length + 1);
+
+    private Counters(final String viewPath, final String subcommand) {
+      myViewPath = viewPath;
+      mySubcommand = subcommand;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable statistics of one cleartool subcommand executed for one view.
+ */
+public class CommandStatistics {
+  private final String myViewPath;
+  private final String mySubcommand;
+  private final long myCount;
+  private final long myErrorCount;
+  private final long myTotalLatencyMillis;
+  private final long myMaxLatencyMillis;
+  private final long myOutputBytes;
+  private final long[] myLatencyHistogram;
+
+  CommandStatistics(@NotNull final String viewPath,
+                    @NotNull final String subcommand,
+                    final long count,
+                    final long errorCount,
+                    final long totalLatencyMillis,
+                    final long maxLatencyMillis,
+                    final long outputBytes,
+                    @NotNull final long[] latencyHistogram) {
+    myViewPath = viewPath;
+    mySubcommand = subcommand;
+    myCount = count;
+    myErrorCount = errorCount;
+    myTotalLatencyMillis = totalLatencyMillis;
+    myMaxLatencyMillis = maxLatencyMillis;
+    myOutputBytes = outputBytes;
+    myLatencyHistogram = latencyHistogram;
+  }
+
+  @NotNull
+  public String getViewPath() {
+    return myViewPath;
+  }
+
+  @NotNull
+  public String getSubcommand() {
+    return mySubcommand;
+  }
+
+  public long getCount() {
+    return myCount;
+  }
+
+  public long getErrorCount() {
+    return myErrorCount;
+  }
+
+  public double getErrorRate() {
+    return myCount == 0 ? 0 : (double)myErrorCount / myCount;
+  }
+
+  public long getTotalLatencyMillis() {
+    return myTotalLatencyMillis;
+  }
+
+  public long getAverageLatencyMillis() {
+    return myCount == 0 ? 0 : myTotalLatencyMillis / myCount;
+  }
+
+  public long getMaxLatencyMillis() {
+    return myMaxLatencyMillis;
+  }
+
+  public long getOutputBytes() {
+    return myOutputBytes;
+  }
+
+  /**
+   * @return number of commands per latency bucket, bucket i counts latencies below {@link CommandMetrics#getLatencyBucketBounds()}[i],
+   *         the last bucket counts the rest
+   */
+  @NotNull
+  public long[] getLatencyHistogram() {
+    return myLatencyHistogram.clone();
+  }
+
+  public String toString() {
+    final StringBuffer result = new StringBuffer();
+    result.append(mySubcommand).append(" [").append(myViewPath).append("]: ")
+      .append(myCount).append(" commands, ")
+      .append(myErrorCount).append(" errors, ")
+      .append(getAverageLatencyMillis()).append(" ms average, ")
+      .append(myMaxLatencyMillis).append(" ms max, ")
+      .append(myOutputBytes).append(" bytes, latency histogram");
+    final long[] bounds = CommandMetrics.getLatencyBucketBounds();
+    for (int i = 0; i < myLatencyHistogram.length; i++) {
+      result.append(' ').append(i < bounds.length ? "<" + bounds[i] : ">=" + bounds[bounds.length - 1]).append(':').append(myLatencyHistogram[i]);
+    }
+    return result.toString();
+  }
+}
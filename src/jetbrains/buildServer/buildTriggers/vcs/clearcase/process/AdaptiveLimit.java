@@ -0,0 +1,81 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.process;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Concurrency limit of one ClearCase server adjusted by the observed command latency (AIMD).
+ * <p/>
+ * Every subcommand has its own baseline latency: it follows lower latencies at once and higher ones slowly.
+ * A command much slower than its baseline (or a timeout) means the server is overloaded and the limit
+ * is decreased multiplicatively, at most once per limit completed commands. Otherwise the limit grows by
+ * about one per limit completed commands, but only while all the slots are in use.
+ * <p/>
+ * Not thread safe, guarded by the owner.
+ */
+class AdaptiveLimit {
+  private static final double DECREASE_FACTOR = 0.75;
+  private static final double BASELINE_DRIFT = 0.01;
+  //differences below this are noise even for the fastest commands
+  private static final long MIN_SIGNIFICANT_LATENCY_MILLIS = 20;
+
+  private final int myMinLimit;
+  private final int myMaxLimit;
+  private final double myTolerance;
+  private final Map<String, Double> myBaselines = new HashMap<String, Double>();
+  private double myLimit;
+  private int myCompletedSinceDecrease = 0;
+
+  AdaptiveLimit(final int initialLimit, final int minLimit, final int maxLimit, final double tolerance) {
+    myMinLimit = Math.max(1, minLimit);
+    myMaxLimit = Math.max(myMinLimit, maxLimit);
+    myTolerance = tolerance;
+    myLimit = Math.max(myMinLimit, Math.min(myMaxLimit, initialLimit));
+  }
+
+  int getLimit() {
+    return (int)myLimit;
+  }
+
+  /**
+   * @param saturated true if all the slots were in use when the command completed
+   */
+  void commandCompleted(@NotNull final String subcommand, final long latencyMillis, final boolean timedOut, final boolean saturated) {
+    myCompletedSinceDecrease++;
+    if (timedOut || isSlow(subcommand, latencyMillis)) {
+      if (myCompletedSinceDecrease >= myLimit) {
+        myLimit = Math.max(myMinLimit, myLimit * DECREASE_FACTOR);
+        myCompletedSinceDecrease = 0;
+      }
+    } else if (saturated) {
+      myLimit = Math.min(myMaxLimit, myLimit + 1 / myLimit);
+    }
+  }
+
+  private boolean isSlow(final String subcommand, final long latencyMillis) {
+    final Double baseline = myBaselines.get(subcommand);
+    if (baseline == null || latencyMillis < baseline) {
+      myBaselines.put(subcommand, (double)latencyMillis);
+      return false;
+    }
+    myBaselines.put(subcommand, baseline + (latencyMillis - baseline) * BASELINE_DRIFT);
+    return latencyMillis > Math.max(baseline, MIN_SIGNIFICANT_LATENCY_MILLIS) * myTolerance;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.process;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Known cleartool failures which are expected by the plugin.
+ */
+public enum ClearCaseError {
+  ALREADY_ON_ELEMENT("already on element"),
+  UPDATE_IN_PROGRESS("A snapshot view update is in progress", "An update is already in progress"),
+  NOT_A_SNAPSHOT_VIEW("is not a valid snapshot view path"),
+  ALREADY_EXISTS("already exists"),
+  UNKNOWN;
+
+  @NonNls private final String[] myMarkers;
+
+  ClearCaseError(@NonNls final String... markers) {
+    myMarkers = markers;
+  }
+
+  @NotNull
+  public static ClearCaseError classify(@Nullable final String errorText) {
+    if (errorText == null) return UNKNOWN;
+    for (ClearCaseError error : values()) {
+      for (String marker : error.myMarkers) {
+        if (errorText.contains(marker)) return error;
+      }
+    }
+    return UNKNOWN;
+  }
+
+  /**
+   * Returns the error of the failed command which caused the exception, the message is classified if there is no such command.
+   */
+  @NotNull
+  public static ClearCaseError of(@NotNull final Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof CommandFailedException) {
+        return ((CommandFailedException)cause).getError();
+      }
+    }
+    return classify(e.getLocalizedMessage());
+  }
+}
@@ -27,4 +27,6 @@ public interface ClearCaseFacade {
   ExecResult execute(GeneralCommandLine commandLine, ProcessListener listener) throws ExecutionException;
 
   InteractiveProcessFacade createProcess(final GeneralCommandLine generalCommandLine) throws ExecutionException;
+
+  Process startProcess(final GeneralCommandLine generalCommandLine) throws ExecutionException;
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.process;
+
+import java.io.IOException;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown when cleartool reports a non-zero status for a command. The whole output of the command has been read,
+ * so the interactive process can still be used.
+ */
+public class CommandFailedException extends IOException {
+  private final String[] myCommand;
+  private final String myErrorText;
+  private final ClearCaseError myError;
+
+  public CommandFailedException(@NotNull final String[] command, @NotNull final String errorText) {
+    super("Error executing " + StringUtil.join(command, " ") + ": " + errorText);
+    myCommand = command;
+    myErrorText = errorText;
+    myError = ClearCaseError.classify(errorText);
+  }
+
+  @NotNull
+  public String[] getCommand() {
+    return myCommand;
+  }
+
+  @NotNull
+  public String getErrorText() {
+    return myErrorText;
+  }
+
+  @NotNull
+  public ClearCaseError getError() {
+    return myError;
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.process;
+
+import com.intellij.openapi.util.io.FileUtil;
+import java.io.*;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Collects the output of one command in memory and spills it to a temporary file
+ * only when it grows above the given limit.
+ */
+class CommandOutputBuffer extends OutputStream {
+  private final int myMemoryLimit;
+  private ExposedByteArrayOutputStream myMemoryBuffer = new ExposedByteArrayOutputStream();
+  private File myTempFile;
+  private OutputStream myFileOutput;
+
+  CommandOutputBuffer(final int memoryLimit) {
+    myMemoryLimit = memoryLimit;
+  }
+
+  public void write(final int b) throws IOException {
+    if (myFileOutput == null && myMemoryBuffer.size() + 1 > myMemoryLimit) {
+      spill();
+    }
+    if (myFileOutput != null) {
+      myFileOutput.write(b);
+    } else {
+      myMemoryBuffer.write(b);
+    }
+  }
+
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    if (myFileOutput == null && myMemoryBuffer.size() + len > myMemoryLimit) {
+      spill();
+    }
+    if (myFileOutput != null) {
+      myFileOutput.write(b, off, len);
+    } else {
+      myMemoryBuffer.write(b, off, len);
+    }
+  }
+
+  private void spill() throws IOException {
+    myTempFile = FileUtil.createTempFile("cc", "execution");
+    myFileOutput = new BufferedOutputStream(new FileOutputStream(myTempFile));
+    myMemoryBuffer.writeTo(myFileOutput);
+    myMemoryBuffer = null;
+  }
+
+  /**
+   * Finishes writing and returns the collected output; closing the stream releases the temporary file, if any.
+   */
+  @NotNull
+  public InputStream createInputStream() throws IOException {
+    if (myFileOutput == null) {
+      return myMemoryBuffer.createInputStream();
+    }
+
+    myFileOutput.close();
+    final File tempFile = myTempFile;
+    return new BufferedInputStream(new FileInputStream(tempFile)) {
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          FileUtil.delete(tempFile);
+        }
+      }
+    };
+  }
+
+  public void discard() {
+    if (myFileOutput != null) {
+      try {
+        myFileOutput.close();
+      } catch (IOException e) {
+        //ignore
+      }
+      FileUtil.delete(myTempFile);
+    }
+  }
+
+  private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    private InputStream createInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.process;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Limits the number of cleartool commands running at once against one ClearCase server and lets commands
+ * of higher priority go first. The priority is taken from the calling thread, see {@link #setCurrentPriority(Priority)}.
+ * <p/>
+ * Several slots of every server are reserved for {@link Priority#INTERACTIVE} commands, so a user request
+ * waits at most for the commands already running even if a long labeling or cache loading is in progress.
+ * A thread already holding a slot of a server is not limited again (e.g. commands issued while an lshistory output is read).
+ * <p/>
+ * The number of slots of a server is adaptive (see {@link AdaptiveLimit}): it grows while the server answers as fast
+ * as usual and shrinks when the command latency grows, between the given minimum and maximum.
+ */
+public class CommandScheduler {
+  public enum Priority {
+    //the order matters: the first one is the most important
+    INTERACTIVE, CHANGE_COLLECTION, BACKGROUND
+  }
+
+  private static final ThreadLocal<Priority> ourCurrentPriority = new ThreadLocal<Priority>();
+
+  private final int myInitialCommandsPerServer;
+  private final int myMinCommandsPerServer;
+  private final int myMaxCommandsPerServer;
+  private final int myInteractiveReserve;
+  private final double myLatencyTolerance;
+  private final Map<String, Server> myServers = new HashMap<String, Server>();
+  private final ThreadLocal<Map<String, Integer>> myHeldSlots = new ThreadLocal<Map<String, Integer>>() {
+    protected Map<String, Integer> initialValue() {
+      return new HashMap<String, Integer>();
+    }
+  };
+
+  /**
+   * @param maxCommandsPerServer 0 means no limit
+   * @param latencyTolerance how many times a command may be slower than usual before the limit is decreased
+   */
+  public CommandScheduler(final int initialCommandsPerServer,
+                          final int minCommandsPerServer,
+                          final int maxCommandsPerServer,
+                          final int interactiveReserve,
+                          final double latencyTolerance) {
+    myInitialCommandsPerServer = initialCommandsPerServer;
+    myMinCommandsPerServer = minCommandsPerServer;
+    myMaxCommandsPerServer = maxCommandsPerServer;
+    myInteractiveReserve = interactiveReserve;
+    myLatencyTolerance = latencyTolerance;
+  }
+
+  /**
+   * Sets the priority of the commands executed by the current thread.
+   * @return the previous priority, it should be restored when the operation is finished
+   */
+  @NotNull
+  public static Priority setCurrentPriority(@NotNull final Priority priority) {
+    final Priority previous = getCurrentPriority();
+    ourCurrentPriority.set(priority);
+    return previous;
+  }
+
+  @NotNull
+  public static Priority getCurrentPriority() {
+    final Priority priority = ourCurrentPriority.get();
+    return priority == null ? Priority.CHANGE_COLLECTION : priority;
+  }
+
+  /**
+   * Waits for a free slot of the server, every successful call must be followed by {@link #release(String)}.
+   */
+  public void acquire(@NotNull final String server) throws InterruptedIOException {
+    final Map<String, Integer> heldSlots = myHeldSlots.get();
+    final Integer held = heldSlots.get(server);
+    if (held == null && myMaxCommandsPerServer > 0) {
+      getServer(server).acquire(getCurrentPriority());
+    }
+    heldSlots.put(server, held == null ? 1 : held + 1);
+  }
+
+  public void release(@NotNull final String server) {
+    final Map<String, Integer> heldSlots = myHeldSlots.get();
+    final Integer held = heldSlots.get(server);
+    if (held == null) return;
+    if (held > 1) {
+      heldSlots.put(server, held - 1);
+      return;
+    }
+    heldSlots.remove(server);
+    if (myMaxCommandsPerServer > 0) {
+      getServer(server).release();
+    }
+  }
+
+  /**
+   * Reports the latency of a completed command to adjust the limit of the server.
+   */
+  public void commandCompleted(@NotNull final String server, @NotNull final String subcommand, final long latencyMillis, final boolean timedOut) {
+    if (myMaxCommandsPerServer > 0) {
+      getServer(server).commandCompleted(subcommand, latencyMillis, timedOut);
+    }
+  }
+
+  public int getCurrentLimit(@NotNull final String server) {
+    return myMaxCommandsPerServer > 0 ? getServer(server).getLimit(Priority.INTERACTIVE) : 0;
+  }
+
+  @NotNull
+  private Server getServer(final String server) {
+    synchronized (myServers) {
+      Server result = myServers.get(server);
+      if (result == null) {
+        result = new Server();
+        myServers.put(server, result);
+      }
+      return result;
+    }
+  }
+
+  private class Server {
+    private final PriorityQueue<Waiter> myWaiters = new PriorityQueue<Waiter>();
+    private final AdaptiveLimit myLimit =
+      new AdaptiveLimit(myInitialCommandsPerServer, myMinCommandsPerServer, myMaxCommandsPerServer, myLatencyTolerance);
+    private long myNextWaiterNumber = 0;
+    private int myRunning = 0;
+
+    /**
+     * Maximum number of running commands of the priority: lower priorities cannot use the reserved slots.
+     */
+    private synchronized int getLimit(final Priority priority) {
+      final int limit = myLimit.getLimit();
+      if (priority == Priority.INTERACTIVE) return limit;
+      return Math.max(1, limit - myInteractiveReserve);
+    }
+
+    private synchronized void commandCompleted(final String subcommand, final long latencyMillis, final boolean timedOut) {
+      //the running commands include the completed one if it still holds its slot
+      final boolean saturated = myRunning >= myLimit.getLimit() || !myWaiters.isEmpty();
+      myLimit.commandCompleted(subcommand, latencyMillis, timedOut, saturated);
+      notifyAll();
+    }
+
+    private synchronized void acquire(final Priority priority) throws InterruptedIOException {
+      final Waiter waiter = new Waiter(priority, myNextWaiterNumber++);
+      myWaiters.add(waiter);
+      try {
+        while (myWaiters.peek() != waiter || myRunning >= getLimit(priority)) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        myWaiters.remove(waiter);
+        notifyAll();
+        throw new InterruptedIOException("Interrupted while waiting to execute cleartool command");
+      }
+      myWaiters.poll();
+      myRunning++;
+      //the next waiter may be allowed to run too
+      notifyAll();
+    }
+
+    private synchronized void release() {
+      myRunning--;
+      notifyAll();
+    }
+  }
+
+  private static class Waiter implements Comparable<Waiter> {
+    private final Priority myPriority;
+    private final long myNumber;
+
+    private Waiter(final Priority priority, final long number) {
+      myPriority = priority;
+      myNumber = number;
+    }
+
+    public int compareTo(final Waiter o) {
+      final int byPriority = myPriority.compareTo(o.myPriority);
+      if (byPriority != 0) return byPriority;
+      return myNumber < o.myNumber ? -1 : (myNumber == o.myNumber ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.process;
+
+import java.io.IOException;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown when an interactive command does not complete in time. The process which executed the command is killed.
+ */
+public class CommandTimeoutException extends IOException {
+  private final String[] myCommand;
+  private final boolean myOutputDelivered;
+
+  public CommandTimeoutException(@NotNull final String[] command, final long timeoutMillis, final boolean outputDelivered) {
+    super("Command \"cleartool " + StringUtil.join(command, " ") + "\" has not completed in " + timeoutMillis / 1000 + " seconds");
+    myCommand = command;
+    myOutputDelivered = outputDelivered;
+  }
+
+  @NotNull
+  public String[] getCommand() {
+    return myCommand;
+  }
+
+  @NotNull
+  public String getSubcommand() {
+    return myCommand.length > 0 ? myCommand[0] : "";
+  }
+
+  /**
+   * @return true if a part of the command output has already been passed to the caller, so the command cannot be repeated transparently
+   */
+  public boolean isOutputDelivered() {
+    return myOutputDelivered;
+  }
+}
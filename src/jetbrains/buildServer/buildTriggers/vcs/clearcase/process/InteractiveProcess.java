@@ -16,14 +16,45 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.process;
 
-import com.intellij.openapi.util.io.FileUtil;
-import com.intellij.openapi.vcs.VcsException;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.vcs.VcsException;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public abstract class InteractiveProcess implements InteractiveProcessFacade {
+  private static final Logger LOG = Logger.getLogger(InteractiveProcess.class);
+
   private final InputStream myInput;
   private final OutputStream myOutput;
   private static final int ERROR_READING_SLEEP_MILLIS = readIntFromSystem("clearcase.error.reading.sleep", 100);
+  private static final int OUTPUT_MEMORY_LIMIT = readIntFromSystem("clearcase.output.memory.limit", 1024 * 1024);
+  //lines read ahead of the consumer, cleartool waits on the pipe when they are not taken
+  private static final int OUTPUT_QUEUE_CAPACITY = Math.max(1, readIntFromSystem("clearcase.output.queue.capacity", 4096));
+  private static final int OUTPUT_QUEUE_WAIT_MILLIS = 1000;
+  private static final int PIPELINE_DEPTH = Math.max(1, readIntFromSystem("clearcase.pipeline.depth", 16));
+  private static final int COMMAND_TIMEOUT_SECONDS = readIntFromSystem("clearcase.command.timeout", 600);
+  private static final int PWD_TIMEOUT_SECONDS = 30;
+
+  //compared by identity, marks the end of the process output
+  @SuppressWarnings({"RedundantStringConstructorCall"})
+  private static final String END_OF_OUTPUT = new String("");
+  private static final OutputLineProcessor DISCARDING_PROCESSOR = new OutputLineProcessor() {
+    public void processLine(@NotNull final String line) {
+    }
+  };
+
+  private final BlockingQueue<String> myOutputLines = new LinkedBlockingQueue<String>(OUTPUT_QUEUE_CAPACITY);
+  private volatile boolean myDestroyed = false;
+  private final Object myErrorLock = new Object();
+  private final StringBuffer myErrorText = new StringBuffer();
+  private boolean myErrorReaderIsIdle = true;
+  private boolean myReadersStarted = false;
 
   private static int readIntFromSystem(final String prop, final int def) {
     try {
@@ -39,6 +70,7 @@ public abstract class InteractiveProcess implements InteractiveProcessFacade {
   }
 
   public void destroy() throws IOException {
+    myDestroyed = true;
     try {
       myInput.close();
       executeQuitCommand();
@@ -57,15 +89,151 @@ public abstract class InteractiveProcess implements InteractiveProcessFacade {
   }
 
   public InputStream executeAndReturnProcessInput(final String[] params) throws IOException {
+    execute(params);
+    return readFromProcessInput(params);
+  }
+
+  public void executeAndProcessOutput(final String[] params, final OutputLineProcessor processor) throws IOException, VcsException {
+    execute(params);
+    processCommandOutput(params, processor);
+  }
+
+  /**
+   * Writes the commands to the process without waiting for the previous ones to complete (at most
+   * clearcase.pipeline.depth commands are outstanding) and passes the output of the i-th command to the i-th processor.
+   * All the outputs are read even if some command fails, then the first error is thrown.
+   * <p/>
+   * Error output cannot be split between pipelined commands, so after a command fails no more commands are written
+   * until the outstanding ones complete, then the failed commands are executed again one by one to get their own error text.
+   */
+  public void executeBatch(final List<String[]> commands, final List<? extends OutputLineProcessor> processors) throws IOException, VcsException {
+    if (commands.size() != processors.size()) {
+      throw new IllegalArgumentException("Each command must have its own output processor");
+    }
+    clearErrorText();
+
+    Exception firstError = null;
+    int firstErrorIndex = commands.size();
+    //commands failed while later commands were outstanding, and whether their output was delivered
+    final List<Integer> failed = new ArrayList<Integer>();
+    final List<Boolean> failedOutputDelivered = new ArrayList<Boolean>();
+    final List<CommandFailedException> failures = new ArrayList<CommandFailedException>();
+    int written = 0;
+    for (int i = 0; i < commands.size(); i++) {
+      if (failed.isEmpty()) {
+        while (written < commands.size() && written - i < PIPELINE_DEPTH) {
+          writeCommand(commands.get(written++));
+        }
+      }
+      final DeliveryTrackingProcessor processor = new DeliveryTrackingProcessor(processors.get(i));
+      try {
+        processCommandOutput(commands.get(i), processor);
+      } catch (CommandTimeoutException e) {
+        //the process is killed, the rest of the outputs will never come
+        throw e;
+      } catch (CommandFailedException e) {
+        if (i < firstErrorIndex) {
+          //the commands written after this one may have written their error output already
+          if (written - i > 1) {
+            failed.add(i);
+            failedOutputDelivered.add(processor.myDelivered);
+            failures.add(e);
+          } else {
+            firstError = e;
+            firstErrorIndex = i;
+          }
+        }
+      } catch (IOException e) {
+        if (i < firstErrorIndex) {
+          firstError = e;
+          firstErrorIndex = i;
+        }
+      } catch (VcsException e) {
+        if (i < firstErrorIndex) {
+          firstError = e;
+          firstErrorIndex = i;
+        }
+      }
+
+      if (!failed.isEmpty() && i + 1 == written) {
+        //nothing is outstanding, the error output of the repeated command is its own
+        for (int j = 0; j < failed.size(); j++) {
+          final int index = failed.get(j);
+          if (index >= firstErrorIndex) break;
+          final Exception error = executeAlone(commands.get(index), failedOutputDelivered.get(j) ? null : processors.get(index), failures.get(j));
+          if (error != null) {
+            firstError = error;
+            firstErrorIndex = index;
+          }
+        }
+        failed.clear();
+        failedOutputDelivered.clear();
+        failures.clear();
+      }
+    }
+
+    if (firstError instanceof IOException) throw (IOException)firstError;
+    if (firstError instanceof VcsException) throw (VcsException)firstError;
+  }
+
+  /**
+   * Executes the command which failed in a batch once more with no other commands outstanding.
+   *
+   * @param processor processor of the output or null if the output of the failed command has been delivered already
+   * @return error of the command or null if it succeeds now
+   */
+  @Nullable
+  private Exception executeAlone(final String[] params, @Nullable final OutputLineProcessor processor, final CommandFailedException failure) throws IOException {
     execute(params);
     try {
-      return readFromProcessInput(params);
+      processCommandOutput(params, processor != null ? processor : DISCARDING_PROCESSOR);
+      //the output is not delivered again, the command is reported failed as it was
+      return processor != null ? null : failure;
+    } catch (CommandTimeoutException e) {
+      throw e;
+    } catch (IOException e) {
+      return e;
     } catch (VcsException e) {
-      throw new IOException(e.getLocalizedMessage());
+      return e;
+    }
+  }
+
+  private void processCommandOutput(final String[] params, final OutputLineProcessor processor) throws IOException, VcsException {
+    final long deadline = getCommandDeadline(params);
+    IOException processingIOError = null;
+    VcsException processingError = null;
+    boolean outputDelivered = false;
+    String line;
+    while ((line = takeOutputLine(params, deadline, outputDelivered)) != null) {
+      lineRead(line);
+      if (isEndOfCommandOutput(line, params)) {
+        break;
+      }
+      if (processingIOError != null || processingError != null) {
+        //drain the rest of the command output to keep the process usable
+        continue;
+      }
+      try {
+        outputDelivered = true;
+        processor.processLine(line);
+      } catch (IOException e) {
+        processingIOError = e;
+      } catch (VcsException e) {
+        processingError = e;
+      }
     }
+
+    if (processingIOError != null) throw processingIOError;
+    if (processingError != null) throw processingError;
   }
 
   protected void execute(String[] args) throws IOException {
+    clearErrorText();
+    writeCommand(args);
+  }
+
+  protected void writeCommand(String[] args) throws IOException {
+    ensureReadersStarted();
     for (String arg : args) {
       myOutput.write(' ');
       if (arg.contains(" ")) {
@@ -81,50 +249,171 @@ public abstract class InteractiveProcess implements InteractiveProcessFacade {
     myOutput.flush();
   }
 
-  private InputStream readFromProcessInput(final String[] params) throws IOException, VcsException {
-    while (true) {
-      if (myInput.available() > 0) break;
-      if (getErrorStream().available() > 0) {
-        throw new VcsException(readError());
-      }      
+  /**
+   * Drops the error text of the previous commands before a command is written. Error output which is still being read
+   * belongs to the previous commands too, so the reader is given up to clearcase.error.reading.sleep milliseconds to drain it.
+   */
+  private void clearErrorText() throws InterruptedIOException {
+    synchronized (myErrorLock) {
+      final long deadline = System.currentTimeMillis() + ERROR_READING_SLEEP_MILLIS;
+      while (!myErrorReaderIsIdle) {
+        final long timeout = deadline - System.currentTimeMillis();
+        if (timeout <= 0) break;
+        try {
+          myErrorLock.wait(timeout);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted while reading cleartool error output");
+        }
+      }
+      myErrorText.setLength(0);
     }
-    final File tempFile = FileUtil.createTempFile("cc", "execution");
+  }
+
+  private synchronized void ensureReadersStarted() {
+    if (myReadersStarted) return;
+    myReadersStarted = true;
+    startDaemon(new Runnable() {
+      public void run() {
+        readOutputLines();
+      }
+    }, "ClearCase output reader");
+    startDaemon(new Runnable() {
+      public void run() {
+        readErrorText(getErrorStream());
+      }
+    }, "ClearCase error reader");
+  }
+
+  private static void startDaemon(final Runnable runnable, final String name) {
+    final Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void readOutputLines() {
     try {
-      final FileOutputStream fileOutput = new FileOutputStream(tempFile);
       try {
         final BufferedReader reader = new BufferedReader(new InputStreamReader(myInput));
-  
         String line;
         while ((line = reader.readLine()) != null) {
-          lineRead(line);
-          if (isEndOfCommandOutput(line, params)) {
-            break;
-          }
-          fileOutput.write(line.getBytes());
-          fileOutput.write('\n');
+          if (!putOutputLine(line)) return;
         }
-        fileOutput.flush();
-      } finally {
-        fileOutput.close();
+      } catch (IOException e) {
+        LOG.debug(e);
       }
-    } catch (IOException e) {
-      FileUtil.delete(tempFile);
-      throw e;
+      putOutputLine(END_OF_OUTPUT);
+    } catch (InterruptedException e) {
+      LOG.debug(e);
     }
+  }
 
-    final FileInputStream fileInput = new FileInputStream(tempFile);
+  /**
+   * Waits while the queue is full: the output is not read faster than it is processed.
+   *
+   * @return false if the process is destroyed and its output will not be taken anymore
+   */
+  private boolean putOutputLine(final String line) throws InterruptedException {
+    while (!myOutputLines.offer(line, OUTPUT_QUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+      if (myDestroyed) {
+        myOutputLines.clear();
+        myOutputLines.offer(END_OF_OUTPUT);
+        return false;
+      }
+    }
+    return true;
+  }
 
-    return new InputStream() {
-      public int read() throws IOException {
-        return fileInput.read();
+  private void readErrorText(final InputStream errorStream) {
+    try {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(errorStream));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        synchronized (myErrorLock) {
+          myErrorText.append(line).append('\n');
+          myErrorReaderIsIdle = isNothingAvailable(reader);
+          myErrorLock.notifyAll();
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug(e);
+    } finally {
+      synchronized (myErrorLock) {
+        myErrorReaderIsIdle = true;
+        myErrorLock.notifyAll();
       }
+    }
+  }
+
+  private static boolean isNothingAvailable(final BufferedReader reader) {
+    try {
+      return !reader.ready();
+    } catch (IOException e) {
+      return true;
+    }
+  }
+
+  /**
+   * The timeout is set by clearcase.command.timeout.&lt;subcommand&gt; or clearcase.command.timeout
+   * system properties (seconds, 0 means no timeout).
+   */
+  private static long getCommandTimeoutMillis(final String[] params) {
+    if (params.length == 0) return 1000L * Math.max(0, COMMAND_TIMEOUT_SECONDS);
+    //pwd is the health check of pooled processes, a hung process should be detected quickly
+    final int defaultTimeout = "pwd".equals(params[0]) ? Math.min(PWD_TIMEOUT_SECONDS, COMMAND_TIMEOUT_SECONDS) : COMMAND_TIMEOUT_SECONDS;
+    final int timeoutSeconds = readIntFromSystem("clearcase.command.timeout." + params[0], defaultTimeout);
+    return 1000L * Math.max(0, timeoutSeconds);
+  }
+
+  private static long getCommandDeadline(final String[] params) {
+    final long timeout = getCommandTimeoutMillis(params);
+    return timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+  }
 
+  private String takeOutputLine(final String[] params, final long deadline, final boolean outputDelivered) throws IOException {
+    try {
+      final String line;
+      if (deadline > 0) {
+        line = myOutputLines.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        if (line == null) {
+          final CommandTimeoutException timeout =
+            new CommandTimeoutException(params, getCommandTimeoutMillis(params), outputDelivered);
+          LOG.warn(timeout.getMessage() + ", killing the process");
+          myDestroyed = true;
+          destroyOSProcess();
+          throw timeout;
+        }
+      } else {
+        line = myOutputLines.take();
+      }
+      if (line == END_OF_OUTPUT) {
+        //keep the marker for the following commands
+        myOutputLines.add(END_OF_OUTPUT);
+        return null;
+      }
+      return line;
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for cleartool output");
+    }
+  }
 
-      public void close() throws IOException {
-        fileInput.close();
-        FileUtil.delete(tempFile);
+  private InputStream readFromProcessInput(final String[] params) throws IOException {
+    final CommandOutputBuffer output = new CommandOutputBuffer(OUTPUT_MEMORY_LIMIT);
+    final long deadline = getCommandDeadline(params);
+    try {
+      String line;
+      while ((line = takeOutputLine(params, deadline, false)) != null) {
+        lineRead(line);
+        if (isEndOfCommandOutput(line, params)) {
+          break;
+        }
+        output.write(line.getBytes());
+        output.write('\n');
       }
-    };
+      return output.createInputStream();
+    } catch (IOException e) {
+      output.discard();
+      throw e;
+    }
   }
 
   protected abstract boolean isEndOfCommandOutput(final String line, final String[] params) throws IOException;
@@ -132,27 +421,42 @@ public abstract class InteractiveProcess implements InteractiveProcessFacade {
   protected void lineRead(final String line) {
   }
 
+  /**
+   * Returns the error text written by the failed command. Error output is drained by a background reader line by line,
+   * the call blocks (without polling) until the reader has drained everything available, but no longer than
+   * clearcase.error.reading.sleep milliseconds if the command has not written anything at all.
+   */
   protected String readError() throws IOException {
-    final InputStream errorStream = getErrorStream();
-    final StringBuffer result = new StringBuffer();
-
-    int available = errorStream.available();
-
-    do {
-      final byte[] read = new byte[available];
-      //noinspection ResultOfMethodCallIgnored
-      errorStream.read(read);
-      result.append(new String(read));
-      try {
-        Thread.sleep(ERROR_READING_SLEEP_MILLIS);
-      } catch (InterruptedException e) {
-        //ignore
+    synchronized (myErrorLock) {
+      final long deadline = System.currentTimeMillis() + ERROR_READING_SLEEP_MILLIS;
+      while (myErrorText.length() == 0 || !myErrorReaderIsIdle) {
+        final long timeout = deadline - System.currentTimeMillis();
+        if (timeout <= 0) break;
+        try {
+          myErrorLock.wait(timeout);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted while reading cleartool error output");
+        }
       }
-      available = errorStream.available();
-    } while (available > 0);
-
-    return result.toString();
+      final String result = myErrorText.toString();
+      myErrorText.setLength(0);
+      return result;
+    }
   }
 
   protected abstract InputStream getErrorStream();
+
+  private static class DeliveryTrackingProcessor implements OutputLineProcessor {
+    private final OutputLineProcessor myProcessor;
+    private boolean myDelivered = false;
+
+    private DeliveryTrackingProcessor(final OutputLineProcessor processor) {
+      myProcessor = processor;
+    }
+
+    public void processLine(@NotNull final String line) throws IOException, VcsException {
+      myDelivered = true;
+      myProcessor.processLine(line);
+    }
+  }
 }
@@ -22,11 +22,16 @@ import jetbrains.buildServer.vcs.VcsException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
 public interface InteractiveProcessFacade {
   void destroy() throws IOException;
 
   InputStream executeAndReturnProcessInput(final String[] params) throws IOException;
 
+  void executeAndProcessOutput(final String[] params, final OutputLineProcessor processor) throws IOException, VcsException;
+
+  void executeBatch(final List<String[]> commands, final List<? extends OutputLineProcessor> processors) throws IOException, VcsException;
+
   void copyFileContentTo(final ClearCaseConnection connection, final String version, final File destFile) throws IOException, VcsException;
 }
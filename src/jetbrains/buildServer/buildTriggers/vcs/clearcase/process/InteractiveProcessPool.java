@@ -0,0 +1,289 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.process;
+
+import com.intellij.execution.ExecutionException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
+import jetbrains.buildServer.vcs.VcsException;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Keeps warm "cleartool -status" processes per working directory (view path) so that connections
+ * lease an already started process instead of forking a new one for every operation.
+ * <p/>
+ * Leasing never blocks: if no idle process is available a new one is created. The pool size limits
+ * the number of idle processes kept per view, extra processes are killed when they are returned.
+ */
+public class InteractiveProcessPool {
+  private static final Logger LOG = Logger.getLogger(InteractiveProcessPool.class);
+
+  private static final String[] HEALTH_CHECK_COMMAND = new String[]{"pwd"};
+
+  public interface ProcessFactory {
+    @NotNull
+    InteractiveProcessFacade createProcess(@NotNull String workingDirectory) throws ExecutionException;
+  }
+
+  private final ProcessFactory myFactory;
+  private final int myMaxIdleProcessesPerView;
+  private final long myIdleTimeoutMillis;
+  private final Map<String, LinkedList<IdleProcess>> myIdleProcesses = new HashMap<String, LinkedList<IdleProcess>>();
+  private Timer myEvictionTimer;
+
+  public InteractiveProcessPool(@NotNull final ProcessFactory factory, final int maxIdleProcessesPerView, final long idleTimeoutMillis) {
+    myFactory = factory;
+    myMaxIdleProcessesPerView = maxIdleProcessesPerView;
+    myIdleTimeoutMillis = idleTimeoutMillis;
+  }
+
+  @NotNull
+  public InteractiveProcessFacade lease(@NotNull final String workingDirectory) throws ExecutionException {
+    while (true) {
+      final IdleProcess idle = pollIdleProcess(workingDirectory);
+      if (idle == null) break;
+      if (isHealthy(idle.myProcess)) {
+        LOG.debug("Reusing cleartool process for " + workingDirectory);
+        return new PooledProcess(workingDirectory, idle.myProcess);
+      }
+      LOG.info("Idle cleartool process for " + workingDirectory + " failed health check, killing it");
+      kill(idle.myProcess);
+    }
+
+    return new PooledProcess(workingDirectory, myFactory.createProcess(workingDirectory));
+  }
+
+  public void evictIdleProcesses() {
+    final List<InteractiveProcessFacade> toKill = new ArrayList<InteractiveProcessFacade>();
+    final long now = System.currentTimeMillis();
+    synchronized (myIdleProcesses) {
+      for (Iterator<LinkedList<IdleProcess>> it = myIdleProcesses.values().iterator(); it.hasNext();) {
+        final LinkedList<IdleProcess> processes = it.next();
+        for (Iterator<IdleProcess> procIt = processes.iterator(); procIt.hasNext();) {
+          final IdleProcess idle = procIt.next();
+          if (isExpired(idle, now)) {
+            procIt.remove();
+            toKill.add(idle.myProcess);
+          }
+        }
+        if (processes.isEmpty()) {
+          it.remove();
+        }
+      }
+    }
+    killAll(toKill);
+  }
+
+  public void dispose() {
+    final List<InteractiveProcessFacade> toKill = new ArrayList<InteractiveProcessFacade>();
+    synchronized (myIdleProcesses) {
+      for (LinkedList<IdleProcess> processes : myIdleProcesses.values()) {
+        for (IdleProcess idle : processes) {
+          toKill.add(idle.myProcess);
+        }
+      }
+      myIdleProcesses.clear();
+      if (myEvictionTimer != null) {
+        myEvictionTimer.cancel();
+        myEvictionTimer = null;
+      }
+    }
+    killAll(toKill);
+  }
+
+  private IdleProcess pollIdleProcess(final String workingDirectory) {
+    final List<InteractiveProcessFacade> toKill = new ArrayList<InteractiveProcessFacade>();
+    try {
+      synchronized (myIdleProcesses) {
+        final LinkedList<IdleProcess> processes = myIdleProcesses.get(workingDirectory);
+        if (processes == null) return null;
+        final long now = System.currentTimeMillis();
+        while (!processes.isEmpty()) {
+          final IdleProcess idle = processes.removeLast();
+          if (isExpired(idle, now)) {
+            toKill.add(idle.myProcess);
+          } else {
+            return idle;
+          }
+        }
+        myIdleProcesses.remove(workingDirectory);
+        return null;
+      }
+    } finally {
+      killAll(toKill);
+    }
+  }
+
+  private void release(final String workingDirectory, final InteractiveProcessFacade process) {
+    boolean pooled = false;
+    synchronized (myIdleProcesses) {
+      LinkedList<IdleProcess> processes = myIdleProcesses.get(workingDirectory);
+      if (processes == null) {
+        processes = new LinkedList<IdleProcess>();
+      }
+      if (processes.size() < myMaxIdleProcessesPerView) {
+        processes.addLast(new IdleProcess(process, System.currentTimeMillis()));
+        myIdleProcesses.put(workingDirectory, processes);
+        ensureEvictionTimerStarted();
+        pooled = true;
+      }
+    }
+    if (!pooled) {
+      kill(process);
+    }
+  }
+
+  private void ensureEvictionTimerStarted() {
+    if (myEvictionTimer != null || myIdleTimeoutMillis <= 0) return;
+    myEvictionTimer = new Timer("ClearCase idle process eviction", true);
+    final long period = Math.max(1000, myIdleTimeoutMillis / 2);
+    myEvictionTimer.schedule(new TimerTask() {
+      public void run() {
+        evictIdleProcesses();
+      }
+    }, period, period);
+  }
+
+  private boolean isExpired(final IdleProcess idle, final long now) {
+    return myIdleTimeoutMillis > 0 && now - idle.myReleaseTime > myIdleTimeoutMillis;
+  }
+
+  private static boolean isHealthy(final InteractiveProcessFacade process) {
+    try {
+      process.executeAndReturnProcessInput(HEALTH_CHECK_COMMAND).close();
+      return true;
+    } catch (IOException e) {
+      LOG.debug(e);
+      return false;
+    }
+  }
+
+  private static void killAll(final List<InteractiveProcessFacade> processes) {
+    for (InteractiveProcessFacade process : processes) {
+      kill(process);
+    }
+  }
+
+  private static void kill(final InteractiveProcessFacade process) {
+    try {
+      process.destroy();
+    } catch (Throwable e) {
+      //ignore
+    }
+  }
+
+  private static class IdleProcess {
+    private final InteractiveProcessFacade myProcess;
+    private final long myReleaseTime;
+
+    private IdleProcess(final InteractiveProcessFacade process, final long releaseTime) {
+      myProcess = process;
+      myReleaseTime = releaseTime;
+    }
+  }
+
+  /**
+   * Process leased from the pool: {@link #destroy()} returns it to the pool unless a command broke it (I/O error, timeout),
+   * in which case the state of the cleartool session is unknown and the process is killed. Commands reported
+   * by cleartool as failed ({@link CommandFailedException}) leave the session usable.
+   */
+  private class PooledProcess implements InteractiveProcessFacade {
+    private final String myWorkingDirectory;
+    private final InteractiveProcessFacade myDelegate;
+    private boolean myBroken = false;
+    private boolean myReleased = false;
+
+    private PooledProcess(final String workingDirectory, final InteractiveProcessFacade delegate) {
+      myWorkingDirectory = workingDirectory;
+      myDelegate = delegate;
+    }
+
+    public void destroy() throws IOException {
+      if (myReleased) return;
+      myReleased = true;
+      if (myBroken) {
+        myDelegate.destroy();
+      } else {
+        release(myWorkingDirectory, myDelegate);
+      }
+    }
+
+    public InputStream executeAndReturnProcessInput(final String[] params) throws IOException {
+      try {
+        return myDelegate.executeAndReturnProcessInput(params);
+      } catch (CommandFailedException e) {
+        //the output of the failed command is read, the process is usable
+        throw e;
+      } catch (IOException e) {
+        myBroken = true;
+        throw e;
+      } catch (RuntimeException e) {
+        myBroken = true;
+        throw e;
+      }
+    }
+
+    public void executeAndProcessOutput(final String[] params, final OutputLineProcessor processor) throws IOException, VcsException {
+      try {
+        myDelegate.executeAndProcessOutput(params, processor);
+      } catch (CommandFailedException e) {
+        throw e;
+      } catch (IOException e) {
+        myBroken = true;
+        throw e;
+      } catch (RuntimeException e) {
+        myBroken = true;
+        throw e;
+      }
+    }
+
+    public void executeBatch(final List<String[]> commands, final List<? extends OutputLineProcessor> processors) throws IOException, VcsException {
+      try {
+        myDelegate.executeBatch(commands, processors);
+      } catch (CommandFailedException e) {
+        throw e;
+      } catch (IOException e) {
+        myBroken = true;
+        throw e;
+      } catch (RuntimeException e) {
+        myBroken = true;
+        throw e;
+      }
+    }
+
+    public void copyFileContentTo(final ClearCaseConnection connection, final String version, final File destFile) throws IOException, VcsException {
+      try {
+        myDelegate.copyFileContentTo(connection, version, destFile);
+      } catch (CommandFailedException e) {
+        throw e;
+      } catch (IOException e) {
+        myBroken = true;
+        throw e;
+      } catch (VcsException e) {
+        myBroken = true;
+        throw e;
+      } catch (RuntimeException e) {
+        myBroken = true;
+        throw e;
+      }
+    }
+  }
+}
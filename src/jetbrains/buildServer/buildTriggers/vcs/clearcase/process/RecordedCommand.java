@@ -0,0 +1,134 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.process;
+
+import java.io.*;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * One cleartool command of a recorded session: its kind, command line, duration, status and output.
+ */
+class RecordedCommand {
+  private static final String FILE_HEADER = "ClearCase session record";
+  private static final int FILE_VERSION = 1;
+
+  static final byte SIMPLE = 0;
+  static final byte STREAMING = 1;
+  static final byte INTERACTIVE = 2;
+  static final byte GET = 3;
+
+  //status of the command which failed without cleartool report (e.g. timeout)
+  static final int BROKEN = -1;
+
+  private final byte myKind;
+  private final String myCommand;
+  private final long myDurationMillis;
+  private final int myStatus;
+  private final byte[] myOutput;
+  private final String myError;
+
+  RecordedCommand(final byte kind,
+                  @NotNull final String command,
+                  final long durationMillis,
+                  final int status,
+                  @NotNull final byte[] output,
+                  @NotNull final String error) {
+    myKind = kind;
+    myCommand = command;
+    myDurationMillis = durationMillis;
+    myStatus = status;
+    myOutput = output;
+    myError = error;
+  }
+
+  @NotNull
+  String getKey() {
+    return createKey(myKind, myCommand);
+  }
+
+  @NotNull
+  static String createKey(final byte kind, @NotNull final String command) {
+    return kind + ":" + command;
+  }
+
+  long getDurationMillis() {
+    return myDurationMillis;
+  }
+
+  int getStatus() {
+    return myStatus;
+  }
+
+  @NotNull
+  byte[] getOutput() {
+    return myOutput;
+  }
+
+  @NotNull
+  String getError() {
+    return myError;
+  }
+
+  static void writeHeader(@NotNull final DataOutputStream output) throws IOException {
+    output.writeUTF(FILE_HEADER);
+    output.writeInt(FILE_VERSION);
+  }
+
+  static void readHeader(@NotNull final DataInputStream input) throws IOException {
+    if (!FILE_HEADER.equals(input.readUTF()) || input.readInt() != FILE_VERSION) {
+      throw new IOException("Unsupported ClearCase session record format");
+    }
+  }
+
+  void writeTo(@NotNull final DataOutputStream output) throws IOException {
+    output.writeByte(myKind);
+    writeString(output, myCommand);
+    output.writeLong(myDurationMillis);
+    output.writeInt(myStatus);
+    output.writeInt(myOutput.length);
+    output.write(myOutput);
+    writeString(output, myError);
+  }
+
+  /**
+   * @return the next command or null at the end of the record
+   */
+  static RecordedCommand readFrom(@NotNull final DataInputStream input) throws IOException {
+    final int kind = input.read();
+    if (kind == -1) return null;
+    final String command = readString(input);
+    final long duration = input.readLong();
+    final int status = input.readInt();
+    final byte[] output = new byte[input.readInt()];
+    input.readFully(output);
+    final String error = readString(input);
+    return new RecordedCommand((byte)kind, command, duration, status, output, error);
+  }
+
+  //writeUTF is limited to 64K
+  private static void writeString(final DataOutputStream output, final String str) throws IOException {
+    final byte[] bytes = str.getBytes("UTF-8");
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  private static String readString(final DataInputStream input) throws IOException {
+    final byte[] bytes = new byte[input.readInt()];
+    input.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.process;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.util.io.FileUtil;
+import java.io.*;
+import java.util.List;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.ProcessListener;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Delegates to the real facade and writes every executed command with its output and duration to a session record
+ * which can be replayed by {@link ReplayClearCaseFacade}.
+ * <p/>
+ * Pipelined batches are executed command by command while recording, so that every command has its own output.
+ */
+public class RecordingClearCaseFacade implements ClearCaseFacade {
+  private static final Logger LOG = Logger.getLogger(RecordingClearCaseFacade.class);
+
+  private final ClearCaseFacade myDelegate;
+  private final DataOutputStream myOutput;
+
+  public RecordingClearCaseFacade(@NotNull final ClearCaseFacade delegate, @NotNull final File recordFile) throws IOException {
+    myDelegate = delegate;
+    myOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordFile)));
+    RecordedCommand.writeHeader(myOutput);
+    myOutput.flush();
+  }
+
+  public ExecResult execute(final GeneralCommandLine commandLine, final ProcessListener listener) throws ExecutionException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final StringBuffer err = new StringBuffer();
+    final long start = System.currentTimeMillis();
+    final ExecResult result = myDelegate.execute(commandLine, new ProcessListener() {
+      public void onOutTextAvailable(final byte[] buff, final int offset, final int length, final OutputStream output) {
+        listener.onOutTextAvailable(buff, offset, length, output);
+      }
+
+      public void onErrTextAvailable(final byte[] buff, final int offset, final int length, final OutputStream output) {
+        listener.onErrTextAvailable(buff, offset, length, output);
+      }
+
+      public void onOutTextAvailable(final String text, final OutputStream output) {
+        try {
+          out.write(text.getBytes());
+        } catch (IOException e) {
+          //ignore
+        }
+        listener.onOutTextAvailable(text, output);
+      }
+
+      public void onErrTextAvailable(final String text, final OutputStream output) {
+        err.append(text);
+        listener.onErrTextAvailable(text, output);
+      }
+    });
+    record(new RecordedCommand(RecordedCommand.SIMPLE, commandLine.getCommandLineString(), System.currentTimeMillis() - start,
+                               result.getExitCode(), out.toByteArray(), err.toString()));
+    return result;
+  }
+
+  public InteractiveProcessFacade createProcess(final GeneralCommandLine generalCommandLine) throws ExecutionException {
+    return new RecordingInteractiveProcess(myDelegate.createProcess(generalCommandLine));
+  }
+
+  public Process startProcess(final GeneralCommandLine generalCommandLine) throws ExecutionException {
+    return new RecordingProcess(myDelegate.startProcess(generalCommandLine), generalCommandLine.getCommandLineString());
+  }
+
+  private void record(final RecordedCommand command) {
+    synchronized (myOutput) {
+      try {
+        command.writeTo(myOutput);
+        myOutput.flush();
+      } catch (IOException e) {
+        LOG.warn("Cannot record ClearCase command: " + e.getLocalizedMessage());
+      }
+    }
+  }
+
+  private static byte[] readFully(final InputStream input) throws IOException {
+    try {
+      final ByteArrayOutputStream result = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        result.write(buffer, 0, read);
+      }
+      return result.toByteArray();
+    } finally {
+      input.close();
+    }
+  }
+
+  private class RecordingInteractiveProcess implements InteractiveProcessFacade {
+    private final InteractiveProcessFacade myProcess;
+
+    private RecordingInteractiveProcess(final InteractiveProcessFacade process) {
+      myProcess = process;
+    }
+
+    public void destroy() throws IOException {
+      myProcess.destroy();
+    }
+
+    public InputStream executeAndReturnProcessInput(final String[] params) throws IOException {
+      final String command = StringUtil.join(params, " ");
+      final long start = System.currentTimeMillis();
+      try {
+        final byte[] output = readFully(myProcess.executeAndReturnProcessInput(params));
+        record(new RecordedCommand(RecordedCommand.INTERACTIVE, command, System.currentTimeMillis() - start, 0, output, ""));
+        return new ByteArrayInputStream(output);
+      } catch (IOException e) {
+        recordFailure(RecordedCommand.INTERACTIVE, command, start, e);
+        throw e;
+      }
+    }
+
+    public void executeAndProcessOutput(final String[] params, final OutputLineProcessor processor) throws IOException, VcsException {
+      final String command = StringUtil.join(params, " ");
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      final long start = System.currentTimeMillis();
+      try {
+        myProcess.executeAndProcessOutput(params, new OutputLineProcessor() {
+          public void processLine(@NotNull final String line) throws IOException, VcsException {
+            output.write(line.getBytes());
+            output.write('\n');
+            processor.processLine(line);
+          }
+        });
+        record(new RecordedCommand(RecordedCommand.INTERACTIVE, command, System.currentTimeMillis() - start, 0, output.toByteArray(), ""));
+      } catch (IOException e) {
+        recordFailure(RecordedCommand.INTERACTIVE, command, start, e);
+        throw e;
+      }
+    }
+
+    public void executeBatch(final List<String[]> commands, final List<? extends OutputLineProcessor> processors) throws IOException, VcsException {
+      IOException firstIOError = null;
+      VcsException firstError = null;
+      for (int i = 0; i < commands.size(); i++) {
+        try {
+          executeAndProcessOutput(commands.get(i), processors.get(i));
+        } catch (CommandTimeoutException e) {
+          throw e;
+        } catch (IOException e) {
+          if (firstIOError == null && firstError == null) firstIOError = e;
+        } catch (VcsException e) {
+          if (firstIOError == null && firstError == null) firstError = e;
+        }
+      }
+      if (firstIOError != null) throw firstIOError;
+      if (firstError != null) throw firstError;
+    }
+
+    public void copyFileContentTo(final ClearCaseConnection connection, final String version, final File destFile) throws IOException, VcsException {
+      final long start = System.currentTimeMillis();
+      try {
+        myProcess.copyFileContentTo(connection, version, destFile);
+        final byte[] content = destFile.isFile() ? FileUtil.loadFileBytes(destFile) : new byte[0];
+        record(new RecordedCommand(RecordedCommand.GET, version, System.currentTimeMillis() - start, 0, content, ""));
+      } catch (IOException e) {
+        recordFailure(RecordedCommand.GET, version, start, e);
+        throw e;
+      }
+    }
+
+    private void recordFailure(final byte kind, final String command, final long start, final IOException e) {
+      final long duration = System.currentTimeMillis() - start;
+      if (e instanceof CommandFailedException) {
+        record(new RecordedCommand(kind, command, duration, 1, new byte[0], ((CommandFailedException)e).getErrorText()));
+      } else {
+        record(new RecordedCommand(kind, command, duration, RecordedCommand.BROKEN, new byte[0], String.valueOf(e.getLocalizedMessage())));
+      }
+    }
+  }
+
+  /**
+   * Copies everything the process writes and records it when both outputs are read to the end and the process is waited for.
+   */
+  private class RecordingProcess extends Process {
+    private final Process myProcess;
+    private final String myCommand;
+    private final long myStart = System.currentTimeMillis();
+    private final TeeInputStream myInputStream;
+    private final TeeInputStream myErrorStream;
+    private Integer myExitCode = null;
+    private boolean myRecorded = false;
+
+    private RecordingProcess(final Process process, final String command) {
+      myProcess = process;
+      myCommand = command;
+      myInputStream = new TeeInputStream(process.getInputStream(), this);
+      myErrorStream = new TeeInputStream(process.getErrorStream(), this);
+    }
+
+    public OutputStream getOutputStream() {
+      return myProcess.getOutputStream();
+    }
+
+    public InputStream getInputStream() {
+      return myInputStream;
+    }
+
+    public InputStream getErrorStream() {
+      return myErrorStream;
+    }
+
+    public int waitFor() throws InterruptedException {
+      final int exitCode = myProcess.waitFor();
+      synchronized (this) {
+        myExitCode = exitCode;
+      }
+      recordIfFinished();
+      return exitCode;
+    }
+
+    public int exitValue() {
+      return myProcess.exitValue();
+    }
+
+    public void destroy() {
+      myProcess.destroy();
+    }
+
+    private void recordIfFinished() {
+      final RecordedCommand command;
+      synchronized (this) {
+        if (myRecorded || myExitCode == null || !myInputStream.isEndOfStream() || !myErrorStream.isEndOfStream()) return;
+        myRecorded = true;
+        command = new RecordedCommand(RecordedCommand.STREAMING, myCommand, System.currentTimeMillis() - myStart, myExitCode.intValue(),
+                                      myInputStream.getCopy(), new String(myErrorStream.getCopy()));
+      }
+      record(command);
+    }
+  }
+
+  private static class TeeInputStream extends FilterInputStream {
+    private final ByteArrayOutputStream myCopy = new ByteArrayOutputStream();
+    private final RecordingProcess myProcess;
+    private volatile boolean myEndOfStream = false;
+
+    private TeeInputStream(final InputStream in, final RecordingProcess process) {
+      super(in);
+      myProcess = process;
+    }
+
+    public int read() throws IOException {
+      final int result = super.read();
+      if (result != -1) {
+        synchronized (myCopy) {
+          myCopy.write(result);
+        }
+      } else {
+        endOfStream();
+      }
+      return result;
+    }
+
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      final int result = super.read(b, off, len);
+      if (result > 0) {
+        synchronized (myCopy) {
+          myCopy.write(b, off, result);
+        }
+      } else if (result == -1) {
+        endOfStream();
+      }
+      return result;
+    }
+
+    private void endOfStream() {
+      myEndOfStream = true;
+      myProcess.recordIfFinished();
+    }
+
+    private boolean isEndOfStream() {
+      return myEndOfStream;
+    }
+
+    private byte[] getCopy() {
+      synchronized (myCopy) {
+        return myCopy.toByteArray();
+      }
+    }
+  }
+}
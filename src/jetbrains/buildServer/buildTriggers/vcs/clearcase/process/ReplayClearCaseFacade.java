@@ -0,0 +1,223 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.process;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import java.io.*;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.ProcessListener;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Answers cleartool commands from a session recorded by {@link RecordingClearCaseFacade}, no ClearCase installation is needed.
+ * <p/>
+ * Outputs of the same command are returned in the recorded order, the last one is repeated if the command is executed
+ * more times than it was recorded. The latency is either none, the recorded duration of the command or a fixed
+ * number of milliseconds.
+ */
+public class ReplayClearCaseFacade implements ClearCaseFacade {
+  @NonNls public static final String RECORDED_LATENCY = "recorded";
+
+  private final Map<String, LinkedList<RecordedCommand>> myCommands = new HashMap<String, LinkedList<RecordedCommand>>();
+  private final boolean myUseRecordedLatency;
+  private final long myLatencyMillis;
+
+  /**
+   * @param latency null or "none" for no latency, "recorded" for the recorded durations or a number of milliseconds
+   */
+  public ReplayClearCaseFacade(@NotNull final File recordFile, @Nullable final String latency) throws IOException {
+    myUseRecordedLatency = RECORDED_LATENCY.equals(latency);
+    myLatencyMillis = parseLatency(latency);
+
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(recordFile)));
+    try {
+      RecordedCommand.readHeader(input);
+      RecordedCommand command;
+      while ((command = RecordedCommand.readFrom(input)) != null) {
+        LinkedList<RecordedCommand> commands = myCommands.get(command.getKey());
+        if (commands == null) {
+          commands = new LinkedList<RecordedCommand>();
+          myCommands.put(command.getKey(), commands);
+        }
+        commands.addLast(command);
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  private static long parseLatency(final String latency) {
+    try {
+      return Math.max(0, Long.parseLong(latency));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  public ExecResult execute(final GeneralCommandLine commandLine, final ProcessListener listener) throws ExecutionException {
+    final RecordedCommand command;
+    try {
+      command = replay(RecordedCommand.SIMPLE, commandLine.getCommandLineString());
+    } catch (IOException e) {
+      throw new ExecutionException(e.getLocalizedMessage());
+    }
+    final OutputStream processInput = new ByteArrayOutputStream();
+    if (command.getOutput().length > 0) {
+      listener.onOutTextAvailable(new String(command.getOutput()), processInput);
+    }
+    if (command.getError().length() > 0) {
+      listener.onErrTextAvailable(command.getError(), processInput);
+    }
+    final ExecResult result = new ExecResult();
+    result.setExitCode(command.getStatus());
+    return result;
+  }
+
+  public InteractiveProcessFacade createProcess(final GeneralCommandLine generalCommandLine) {
+    return new ReplayInteractiveProcess();
+  }
+
+  public Process startProcess(final GeneralCommandLine generalCommandLine) throws ExecutionException {
+    try {
+      return new ReplayProcess(replay(RecordedCommand.STREAMING, generalCommandLine.getCommandLineString()));
+    } catch (IOException e) {
+      throw new ExecutionException(e.getLocalizedMessage());
+    }
+  }
+
+  @NotNull
+  private RecordedCommand replay(final byte kind, final String commandLine) throws IOException {
+    final RecordedCommand command;
+    synchronized (myCommands) {
+      final LinkedList<RecordedCommand> commands = myCommands.get(RecordedCommand.createKey(kind, commandLine));
+      if (commands == null || commands.isEmpty()) {
+        throw new IOException("Command \"" + commandLine + "\" is not found in the ClearCase session record");
+      }
+      command = commands.size() > 1 ? commands.removeFirst() : commands.getFirst();
+    }
+
+    final long latency = myUseRecordedLatency ? command.getDurationMillis() : myLatencyMillis;
+    if (latency > 0) {
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while replaying " + commandLine);
+      }
+    }
+    return command;
+  }
+
+  private class ReplayInteractiveProcess implements InteractiveProcessFacade {
+    public void destroy() {
+    }
+
+    public InputStream executeAndReturnProcessInput(final String[] params) throws IOException {
+      return new ByteArrayInputStream(replayInteractive(RecordedCommand.INTERACTIVE, params, StringUtil.join(params, " ")));
+    }
+
+    public void executeAndProcessOutput(final String[] params, final OutputLineProcessor processor) throws IOException, VcsException {
+      final byte[] output = replayInteractive(RecordedCommand.INTERACTIVE, params, StringUtil.join(params, " "));
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(output)));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        processor.processLine(line);
+      }
+    }
+
+    public void executeBatch(final List<String[]> commands, final List<? extends OutputLineProcessor> processors) throws IOException, VcsException {
+      IOException firstIOError = null;
+      VcsException firstError = null;
+      for (int i = 0; i < commands.size(); i++) {
+        try {
+          executeAndProcessOutput(commands.get(i), processors.get(i));
+        } catch (IOException e) {
+          if (firstIOError == null && firstError == null) firstIOError = e;
+        } catch (VcsException e) {
+          if (firstIOError == null && firstError == null) firstError = e;
+        }
+      }
+      if (firstIOError != null) throw firstIOError;
+      if (firstError != null) throw firstError;
+    }
+
+    public void copyFileContentTo(final ClearCaseConnection connection, final String version, final File destFile) throws IOException {
+      final byte[] content = replayInteractive(RecordedCommand.GET, new String[]{"get", version}, version);
+      final OutputStream output = new FileOutputStream(destFile);
+      try {
+        output.write(content);
+      } finally {
+        output.close();
+      }
+    }
+
+    private byte[] replayInteractive(final byte kind, final String[] params, final String commandLine) throws IOException {
+      final RecordedCommand command = replay(kind, commandLine);
+      if (command.getStatus() == RecordedCommand.BROKEN) {
+        throw new IOException(command.getError());
+      }
+      if (command.getStatus() != 0) {
+        throw new CommandFailedException(params, command.getError());
+      }
+      return command.getOutput();
+    }
+  }
+
+  private static class ReplayProcess extends Process {
+    private final RecordedCommand myCommand;
+    private final InputStream myInputStream;
+    private final InputStream myErrorStream;
+
+    private ReplayProcess(final RecordedCommand command) {
+      myCommand = command;
+      myInputStream = new ByteArrayInputStream(command.getOutput());
+      myErrorStream = new ByteArrayInputStream(command.getError().getBytes());
+    }
+
+    public OutputStream getOutputStream() {
+      return new ByteArrayOutputStream();
+    }
+
+    public InputStream getInputStream() {
+      return myInputStream;
+    }
+
+    public InputStream getErrorStream() {
+      return myErrorStream;
+    }
+
+    public int waitFor() {
+      return myCommand.getStatus();
+    }
+
+    public int exitValue() {
+      return myCommand.getStatus();
+    }
+
+    public void destroy() {
+    }
+  }
+}
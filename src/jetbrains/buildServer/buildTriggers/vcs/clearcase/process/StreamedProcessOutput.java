@@ -0,0 +1,120 @@
+/*
+ * Copyright 2000-2009 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.process;
+
+import java.io.*;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Standard output of a started cleartool process which is read directly from the process pipe, so the process
+ * is blocked by the OS while the consumer does not read and the output is never held in memory as a whole.
+ * <p/>
+ * The error output is drained in background. {@link #close()} waits for the process and throws
+ * {@link CommandFailedException} if it has failed; if the output has not been read to the end the process is killed.
+ */
+public class StreamedProcessOutput extends FilterInputStream {
+  private static final Logger LOG = Logger.getLogger(StreamedProcessOutput.class);
+  private static final int MAX_ERROR_TEXT_LENGTH = 64 * 1024;
+
+  private final Process myProcess;
+  private final String[] myCommand;
+  private final StringBuffer myErrorText = new StringBuffer();
+  private final Thread myErrorReader;
+  private boolean myEndOfOutput = false;
+  private boolean myClosed = false;
+
+  public StreamedProcessOutput(@NotNull final Process process, @NotNull final String[] command) {
+    super(new BufferedInputStream(process.getInputStream()));
+    myProcess = process;
+    myCommand = command;
+    try {
+      process.getOutputStream().close();
+    } catch (IOException e) {
+      //ignore
+    }
+    myErrorReader = new Thread(new Runnable() {
+      public void run() {
+        readErrorText();
+      }
+    }, "ClearCase error reader");
+    myErrorReader.setDaemon(true);
+    myErrorReader.start();
+  }
+
+  private void readErrorText() {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(myProcess.getErrorStream()));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (myErrorText.length() < MAX_ERROR_TEXT_LENGTH) {
+          myErrorText.append(line).append('\n');
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug(e);
+    } finally {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        //ignore
+      }
+    }
+  }
+
+  public int read() throws IOException {
+    final int result = super.read();
+    if (result == -1) myEndOfOutput = true;
+    return result;
+  }
+
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    final int result = super.read(b, off, len);
+    if (result == -1) myEndOfOutput = true;
+    return result;
+  }
+
+  public void close() throws IOException {
+    if (myClosed) return;
+    myClosed = true;
+
+    if (!myEndOfOutput) {
+      //the consumer has stopped reading, nobody needs the rest of the output
+      myProcess.destroy();
+      super.close();
+      return;
+    }
+
+    super.close();
+    final int exitCode;
+    try {
+      exitCode = myProcess.waitFor();
+      myErrorReader.join();
+    } catch (InterruptedException e) {
+      myProcess.destroy();
+      throw new InterruptedIOException("Interrupted while waiting for cleartool to finish");
+    }
+
+    if (exitCode != 0) {
+      final String errorText = myErrorText.length() > 0 ? myErrorText.toString() : "process returns " + exitCode;
+      final CommandFailedException failure = new CommandFailedException(myCommand, errorText);
+      if (failure.getError() != ClearCaseError.UPDATE_IN_PROGRESS) {
+        throw failure;
+      }
+    }
+  }
+}
@@ -24,12 +24,12 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.util.*;
 
-import jetbrains.buildServer.buildTriggers.vcs.clearcase.CCParseUtil;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseSupport;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.VersionProcessor;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecLoadRule;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecParseUtil;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.CommandScheduler;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.IncludeRule;
@@ -103,12 +103,16 @@ public class CacheElement {
   private void loadAllRevisions(String version, ClearCaseConnection connection) throws VcsException, IOException {
     myCacheFile.getParentFile().mkdirs();
     final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(myCacheFile));
+    //loading of the whole tree is the cache warm-up, it gives way to other requests
+    final CommandScheduler.Priority previousPriority = CommandScheduler.setCurrentPriority(CommandScheduler.Priority.BACKGROUND);
     try {
       connection.processAllVersions(version, new WriteVersionProcessor(outputStream), true, false);
       outputStream.close();
     } catch (Throwable e) {
       outputStream.close();
       FileUtil.delete(myCacheFile);
+    } finally {
+      CommandScheduler.setCurrentPriority(previousPriority);
     }
 
   }
@@ -154,9 +158,8 @@ public class CacheElement {
 
   private List<ChangedElementInfo> loadChangesWithConnection(CacheElement nearestCache, ClearCaseConnection tempConnection) throws VcsException, ParseException, IOException {
     try {
-      tempConnection.prepare(myVersionString);
       CollectingChangedFilesProcessor processor = new CollectingChangedFilesProcessor(tempConnection);
-      CCParseUtil.processChangedFiles(tempConnection, nearestCache.getVersionString(), myVersionString, processor);
+      tempConnection.prepareAndCollectChanges(nearestCache.getVersionString(), myVersionString, processor);
       return processor.getChanges();
     } finally {
       tempConnection.dispose();
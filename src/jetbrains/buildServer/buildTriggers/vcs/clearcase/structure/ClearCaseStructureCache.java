@@ -26,6 +26,9 @@ import jetbrains.buildServer.BuildAgent;
 import jetbrains.buildServer.BuildType;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.CCParseUtil;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseSupport;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.HistoryJournal;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.cache.CommandResultCache;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.cache.ElementAttributeCache;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.GeneralDataCleaner;
@@ -107,7 +110,7 @@ public class ClearCaseStructureCache {
   @Nullable
   public CacheElement getCache(final @NotNull String version, final @NotNull String path, final @NotNull IncludeRule includeRule, final @NotNull VcsRoot root) throws VcsException {
     try {
-      Date date = CCParseUtil.getDateFormat().parse(version);
+      Date date = new Date(CCParseUtil.parseVersionDate(version));
       final File cacheFile = createCacheFile(date, path, root);
       if (cacheFile == null) return null;
       return new CacheElement(date, cacheFile, this, path, version,
@@ -119,7 +122,7 @@ public class ClearCaseStructureCache {
   
   @Nullable
   public CacheElement getCache(final @NotNull Date version, final @NotNull String path, final @NotNull IncludeRule includeRule, final @NotNull VcsRoot root) {
-    return new CacheElement(version, createCacheFile(version, path, root), this, path, CCParseUtil.getDateFormat().format(version),
+    return new CacheElement(version, createCacheFile(version, path, root), this, path, CCParseUtil.formatDate(version),
                             includeRule,
                             myParentSupport, root);
   }
@@ -148,6 +151,9 @@ public class ClearCaseStructureCache {
     File[] folders = myBaseDir.listFiles();
     if (folders != null) {
       for (File folder : folders) {
+        if (isSharedCacheDir(folder)) {
+          continue;
+        }
         if (!folder.isDirectory()) {
           FileUtil.delete(folder);
         }
@@ -156,6 +162,14 @@ public class ClearCaseStructureCache {
     }
   }
 
+  /**
+   * Caches shared by all the roots are kept in the same base dir, they are not per root structure caches.
+   */
+  private static boolean isSharedCacheDir(final @NotNull File folder) {
+    return CommandResultCache.DIR_NAME.equals(folder.getName()) || ElementAttributeCache.DIR_NAME.equals(folder.getName())
+           || HistoryJournal.DIR_NAME.equals(folder.getName());
+  }
+
   private void cleanupFolder(final @NotNull File dir, final boolean keepLastCache) {
     File[] subDirs = dir.listFiles();
     if (subDirs != null) {
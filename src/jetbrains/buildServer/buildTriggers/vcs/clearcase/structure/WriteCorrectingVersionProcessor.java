@@ -18,6 +18,8 @@ package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
 import com.intellij.util.containers.HashMap;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
@@ -115,11 +117,20 @@ class WriteCorrectingVersionProcessor implements VersionProcessor {
     throws VcsException {
     final String parentPathWithNewVersion = getParentWithNewVersion(parentDirFullPath, changedElement, clearCaseConnection);
 
+    final List<String> addedFilePaths = new ArrayList<String>();
+    for (ChangedElementInfo addedElem : changedElement.getAddedElements()) {
+      if (addedElem.myChangeType == ChangedElementInfo.ChangeType.ADDED_FILE) {
+        final String fileName = new File(addedElem.myRelativePath).getName();
+        addedFilePaths.add(parentPathWithNewVersion + File.separator + fileName + CCParseUtil.CC_VERSION_SEPARATOR);
+      }
+    }
+    final Iterator<ClearCaseFileAttr> addedFileAttrs = clearCaseConnection.loadFileAttrs(addedFilePaths).iterator();
+
     for (ChangedElementInfo addedElem : changedElement.getAddedElements()) {
 
       if (addedElem.myChangeType == ChangedElementInfo.ChangeType.ADDED_FILE) {
         final String fileName = new File(addedElem.myRelativePath).getName();
-        final ClearCaseFileAttr attr = clearCaseConnection.loadFileAttr(parentPathWithNewVersion + File.separator + fileName + CCParseUtil.CC_VERSION_SEPARATOR);
+        final ClearCaseFileAttr attr = addedFileAttrs.next();
         writeProcessor.writeFile(addedElem.myVersion, fileName, attr.isIsText(), attr.isIsExecutable());
       }
       else if (addedElem.myChangeType == ChangedElementInfo.ChangeType.ADDED_DIR) {